@@ -44,6 +44,11 @@ public class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
         return parenthesize(expr.operator.lexeme, expr.left, expr.right);
     }
 
+    @Override
+    public String visitLogicalExpr(Expr.Logical expr) {
+        return parenthesize(expr.operator.lexeme, expr.left, expr.right);
+    }
+
     @Override
     public String visitCallExpr(Expr.Call expr) {
         return parenthesize("call", expr.callee);
@@ -85,6 +90,11 @@ public class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
         return "(break)";
     }
 
+    @Override
+    public String visitContinueStmt(Stmt.Continue stmt) {
+        return "(continue)";
+    }
+
     @Override
     public String visitWhileStmt(Stmt.While stmt) {
         return "WHILE TODO";
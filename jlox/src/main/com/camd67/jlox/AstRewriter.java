@@ -0,0 +1,188 @@
+package com.camd67.jlox;
+
+import java.util.List;
+
+/**
+ * Base for passes that transform already resolved statements before they run.
+ * Every node is visited bottom up and returns what should take its place, which by default is itself.
+ * Children are replaced in place, so resolved information on the nodes that are kept is left alone.
+ */
+abstract class AstRewriter implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+
+    void rewrite(List<Stmt> statements) {
+        for (var i = 0; i < statements.size(); i++) {
+            var statement = statements.get(i);
+            var rewritten = rewrite(statement);
+            if (rewritten != statement) {
+                statements.set(i, rewritten);
+            }
+        }
+    }
+
+    Stmt rewrite(Stmt statement) {
+        return statement.accept(this);
+    }
+
+    Expr rewrite(Expr expr) {
+        return expr.accept(this);
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        expr.value = rewrite(expr.value);
+        return expr;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        expr.left = rewrite(expr.left);
+        expr.right = rewrite(expr.right);
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        expr.left = rewrite(expr.left);
+        expr.right = rewrite(expr.right);
+        return expr;
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        expr.callee = rewrite(expr.callee);
+        for (var i = 0; i < expr.arguments.size(); i++) {
+            expr.arguments.set(i, rewrite(expr.arguments.get(i)));
+        }
+        return expr;
+    }
+
+    @Override
+    public Expr visitGetExpr(Expr.Get expr) {
+        expr.object = rewrite(expr.object);
+        return expr;
+    }
+
+    @Override
+    public Expr visitSetExpr(Expr.Set expr) {
+        expr.object = rewrite(expr.object);
+        expr.value = rewrite(expr.value);
+        return expr;
+    }
+
+    @Override
+    public Expr visitThisExpr(Expr.This expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        expr.expression = rewrite(expr.expression);
+        return expr;
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        expr.right = rewrite(expr.right);
+        return expr;
+    }
+
+    @Override
+    public Expr visitTernaryExpr(Expr.Ternary expr) {
+        expr.check = rewrite(expr.check);
+        expr.left = rewrite(expr.left);
+        expr.right = rewrite(expr.right);
+        return expr;
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        return expr;
+    }
+
+    @Override
+    public Stmt visitBreakStmt(Stmt.Break stmt) {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitContinueStmt(Stmt.Continue stmt) {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        stmt.condition = rewrite(stmt.condition);
+        stmt.body = rewrite(stmt.body);
+        if (stmt.increment != null) {
+            stmt.increment = rewrite(stmt.increment);
+        }
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        stmt.condition = rewrite(stmt.condition);
+        stmt.thenBranch = rewrite(stmt.thenBranch);
+        if (stmt.elseBranch != null) {
+            stmt.elseBranch = rewrite(stmt.elseBranch);
+        }
+        return stmt;
+    }
+
+    /**
+     * Function declarations are rewritten in place rather than copied,
+     * since the interpreter and compilers hang their own state off the declaration.
+     */
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        rewrite(stmt.body);
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        rewrite(stmt.statements);
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitClassStmt(Stmt.Class stmt) {
+        for (var method : stmt.methods) {
+            visitFunctionStmt(method);
+        }
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        stmt.expression = rewrite(stmt.expression);
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        stmt.expression = rewrite(stmt.expression);
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value != null) {
+            stmt.value = rewrite(stmt.value);
+        }
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer != null) {
+            stmt.initializer = rewrite(stmt.initializer);
+        }
+        return stmt;
+    }
+}
@@ -0,0 +1,680 @@
+package com.camd67.jlox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compiles a resolved AST into bytecode for the VM.
+ * The Resolver should have already run (and reported no errors) over the statements
+ * so we can assume things like variables being declared before use.
+ */
+public class BytecodeCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+
+    private enum FunctionType {
+        SCRIPT,
+        FUNCTION,
+        INITIALIZER,
+        METHOD,
+    }
+
+    /**
+     * A local variable living in a stack slot of the current function.
+     */
+    private static class Local {
+        final String name;
+        final int depth;
+        /**
+         * If this local was declared without an initializer, reads must check it has been assigned.
+         */
+        final boolean hasInitializer;
+        /**
+         * If any closure captures this local, we need to hoist it when it goes out of scope.
+         */
+        boolean isCaptured = false;
+
+        Local(String name, int depth, boolean hasInitializer) {
+            this.name = name;
+            this.depth = depth;
+            this.hasInitializer = hasInitializer;
+        }
+    }
+
+    private record Upvalue(int index, boolean isLocal, boolean hasInitializer) {
+    }
+
+    /**
+     * Tracks the innermost loop so a break knows where to jump and which locals to drop.
+     */
+    private static class Loop {
+        final Loop enclosing;
+        final int scopeDepth;
+        final List<Integer> breakJumps = new ArrayList<>();
+        final List<Integer> continueJumps = new ArrayList<>();
+
+        Loop(Loop enclosing, int scopeDepth) {
+            this.enclosing = enclosing;
+            this.scopeDepth = scopeDepth;
+        }
+    }
+
+    /**
+     * Compiler state for the function currently being compiled.
+     * These nest the same way function declarations do.
+     */
+    private static class FunctionState {
+        final FunctionState enclosing;
+        final VmFunction function;
+        final FunctionType type;
+        final List<Local> locals = new ArrayList<>();
+        final List<Upvalue> upvalues = new ArrayList<>();
+        int scopeDepth = 0;
+        Loop loop = null;
+
+        FunctionState(FunctionState enclosing, VmFunction function, FunctionType type) {
+            this.enclosing = enclosing;
+            this.function = function;
+            this.type = type;
+
+            // Slot zero holds the function being called, or the receiver for methods
+            var slotZeroName = type == FunctionType.METHOD || type == FunctionType.INITIALIZER ? "this" : "";
+            locals.add(new Local(slotZeroName, 0, true));
+        }
+    }
+
+    /**
+     * All operands that index into something (constants, slots) are a single byte.
+     */
+    private static final int MAX_OPERAND = 255;
+    private static final int MAX_JUMP = 65535;
+
+    private final LoxGlobal lox;
+    /**
+     * Global references are compiled straight to their cell, so the VM never looks them up by name.
+     */
+    private final GlobalEnvironment globals;
+    private FunctionState current;
+    private boolean hadError = false;
+
+    /**
+     * The line of the last token we saw, attached to every instruction we emit.
+     */
+    private int line = 1;
+
+    public BytecodeCompiler(LoxGlobal lox, GlobalEnvironment globals) {
+        this.lox = lox;
+        this.globals = globals;
+    }
+
+    /**
+     * Compiles a program into its top level script function.
+     * Returns null if compilation failed, the error has already been reported.
+     */
+    VmFunction compile(List<Stmt> statements) {
+        current = new FunctionState(null, new VmFunction(null), FunctionType.SCRIPT);
+        for (var statement : statements) {
+            compile(statement);
+        }
+        var script = endFunction();
+        return hadError ? null : script;
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+        line = stmt.token.line;
+        var loop = current.loop;
+        if (loop == null) {
+            error(stmt.token, "Break occurred outside loop");
+            return null;
+        }
+
+        // Discard any locals declared inside the loop body, but don't forget about them
+        // since the code after the break is still in their scope.
+        for (var i = current.locals.size() - 1; i >= 0 && current.locals.get(i).depth > loop.scopeDepth; i--) {
+            emitPopLocal(current.locals.get(i));
+        }
+        loop.breakJumps.add(emitJump(OpCode.JUMP));
+        return null;
+    }
+
+    @Override
+    public Void visitContinueStmt(Stmt.Continue stmt) {
+        line = stmt.token.line;
+        var loop = current.loop;
+        if (loop == null) {
+            error(stmt.token, "Continue occurred outside loop");
+            return null;
+        }
+
+        // Same as break, but we jump to the increment instead
+        for (var i = current.locals.size() - 1; i >= 0 && current.locals.get(i).depth > loop.scopeDepth; i--) {
+            emitPopLocal(current.locals.get(i));
+        }
+        loop.continueJumps.add(emitJump(OpCode.JUMP));
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        var loopStart = currentChunk().count;
+        compile(stmt.condition);
+
+        var exitJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emit(OpCode.POP);
+
+        current.loop = new Loop(current.loop, current.scopeDepth);
+        compile(stmt.body);
+        for (var continueJump : current.loop.continueJumps) {
+            patchJump(continueJump);
+        }
+        if (stmt.increment != null) {
+            compile(stmt.increment);
+            emit(OpCode.POP);
+        }
+        emitLoop(loopStart);
+
+        patchJump(exitJump);
+        emit(OpCode.POP);
+
+        // Breaks jump past the condition pop since they leave from inside the body
+        for (var breakJump : current.loop.breakJumps) {
+            patchJump(breakJump);
+        }
+        current.loop = current.loop.enclosing;
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        compile(stmt.condition);
+
+        var thenJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emit(OpCode.POP);
+        compile(stmt.thenBranch);
+
+        var elseJump = emitJump(OpCode.JUMP);
+        patchJump(thenJump);
+        emit(OpCode.POP);
+
+        if (stmt.elseBranch != null) {
+            compile(stmt.elseBranch);
+        }
+        patchJump(elseJump);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        line = stmt.name.line;
+        // Declare the name before compiling the body so the function can refer to itself
+        if (current.scopeDepth > 0) {
+            addLocal(stmt.name, true);
+        }
+        function(stmt, FunctionType.FUNCTION);
+        defineVariable(stmt.name);
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        beginScope();
+        for (var statement : stmt.statements) {
+            compile(statement);
+        }
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        line = stmt.name.line;
+        var nameConstant = makeConstant(stmt.name.lexeme);
+        if (current.scopeDepth > 0) {
+            addLocal(stmt.name, true);
+        }
+        emit(OpCode.CLASS, nameConstant);
+        defineVariable(stmt.name);
+
+        // Load the class back up so each method can attach itself
+        namedVariable(stmt.name, false);
+        for (var method : stmt.methods) {
+            line = method.name.line;
+            var type = method.name.lexeme.equals("init") ? FunctionType.INITIALIZER : FunctionType.METHOD;
+            function(method, type);
+            emit(OpCode.METHOD, makeConstant(method.name.lexeme));
+        }
+        emit(OpCode.POP);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expression);
+        emit(OpCode.POP);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expression);
+        emit(OpCode.PRINT);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        line = stmt.keyword.line;
+        if (current.type == FunctionType.INITIALIZER) {
+            // The resolver guarantees there's no value here
+            emit(OpCode.GET_LOCAL, 0);
+        } else if (stmt.tailCall) {
+            var call = (Expr.Call) stmt.value;
+            compile(call.callee);
+            for (var argument : call.arguments) {
+                compile(argument);
+            }
+            line = call.paren.line;
+            emit(OpCode.TAIL_CALL, call.arguments.size());
+        } else if (stmt.value != null) {
+            compile(stmt.value);
+        } else {
+            emit(OpCode.NIL);
+        }
+        emit(OpCode.RETURN);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        line = stmt.name.line;
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+        } else {
+            emit(OpCode.UNINITIALIZED);
+        }
+
+        // Locals are added after the initializer so the value already sits in the new slot.
+        // The resolver has made sure the initializer can't refer to the variable.
+        if (current.scopeDepth > 0) {
+            addLocal(stmt.name, stmt.initializer != null);
+        }
+        defineVariable(stmt.name);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compile(expr.value);
+        line = expr.type.line;
+        namedVariable(expr.type, true);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        compile(expr.left);
+        compile(expr.right);
+        line = expr.operator.line;
+        switch (expr.operator.type) {
+            case BANG_EQUAL -> emit(OpCode.NOT_EQUAL);
+            case EQUAL_EQUAL -> emit(OpCode.EQUAL);
+            case GREATER -> emit(OpCode.GREATER);
+            case GREATER_EQUAL -> emit(OpCode.GREATER_EQUAL);
+            case LESS -> emit(OpCode.LESS);
+            case LESS_EQUAL -> emit(OpCode.LESS_EQUAL);
+            case MINUS -> emit(OpCode.SUBTRACT);
+            case SLASH -> emit(OpCode.DIVIDE);
+            case STAR -> emit(OpCode.MULTIPLY);
+            case PLUS -> emit(OpCode.ADD);
+            default -> error(expr.operator, "Unknown binary operator.");
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        compile(expr.callee);
+        for (var argument : expr.arguments) {
+            compile(argument);
+        }
+        line = expr.paren.line;
+        emit(OpCode.CALL, expr.arguments.size());
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        compile(expr.object);
+        line = expr.name.line;
+        emit(OpCode.GET_PROPERTY, makeConstant(expr.name.lexeme));
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        compile(expr.object);
+        compile(expr.value);
+        line = expr.name.line;
+        emit(OpCode.SET_PROPERTY, makeConstant(expr.name.lexeme));
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        line = expr.keyword.line;
+        namedVariable(expr.keyword, false);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            emit(OpCode.NIL);
+        } else if (expr.value.equals(true)) {
+            emit(OpCode.TRUE);
+        } else if (expr.value.equals(false)) {
+            emit(OpCode.FALSE);
+        } else {
+            emit(OpCode.CONSTANT, makeConstant(expr.value));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+        line = expr.operator.line;
+        switch (expr.operator.type) {
+            case MINUS -> emit(OpCode.NEGATE);
+            case BANG -> emit(OpCode.NOT);
+            default -> error(expr.operator, "Unknown unary operator.");
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        compile(expr.left);
+
+        // The left operand stays on the stack as the result when it decides the expression
+        int endJump;
+        if (expr.operator.type == TokenType.OR) {
+            var elseJump = emitJump(OpCode.JUMP_IF_FALSE);
+            endJump = emitJump(OpCode.JUMP);
+            patchJump(elseJump);
+        } else {
+            endJump = emitJump(OpCode.JUMP_IF_FALSE);
+        }
+        emit(OpCode.POP);
+        compile(expr.right);
+
+        patchJump(endJump);
+        return null;
+    }
+
+    @Override
+    public Void visitTernaryExpr(Expr.Ternary expr) {
+        compile(expr.check);
+
+        var elseJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emit(OpCode.POP);
+        compile(expr.left);
+
+        var endJump = emitJump(OpCode.JUMP);
+        patchJump(elseJump);
+        emit(OpCode.POP);
+        compile(expr.right);
+
+        patchJump(endJump);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        line = expr.name.line;
+        namedVariable(expr.name, false);
+        return null;
+    }
+
+    /**
+     * Compiles a function body into its own VmFunction and emits the code to create a closure over it.
+     */
+    private void function(Stmt.Function stmt, FunctionType type) {
+        current = new FunctionState(current, new VmFunction(stmt.name.lexeme), type);
+        beginScope();
+
+        current.function.arity = stmt.params.size();
+        for (var param : stmt.params) {
+            addLocal(param, true);
+        }
+        for (var statement : stmt.body) {
+            compile(statement);
+        }
+
+        // No need to end the scope, returning discards the whole frame
+        var upvalues = current.upvalues;
+        var function = endFunction();
+
+        emit(OpCode.CLOSURE, makeConstant(function));
+        for (var upvalue : upvalues) {
+            emit(upvalue.isLocal() ? 1 : 0);
+            emit(upvalue.index());
+        }
+    }
+
+    private VmFunction endFunction() {
+        emitImplicitReturn();
+        var function = current.function;
+        function.upvalueCount = current.upvalues.size();
+        current = current.enclosing;
+        return function;
+    }
+
+    private void emitImplicitReturn() {
+        if (current.type == FunctionType.INITIALIZER) {
+            emit(OpCode.GET_LOCAL, 0);
+        } else {
+            emit(OpCode.NIL);
+        }
+        emit(OpCode.RETURN);
+    }
+
+    private void beginScope() {
+        current.scopeDepth++;
+    }
+
+    private void endScope() {
+        current.scopeDepth--;
+
+        var locals = current.locals;
+        while (!locals.isEmpty() && locals.get(locals.size() - 1).depth > current.scopeDepth) {
+            emitPopLocal(locals.remove(locals.size() - 1));
+        }
+    }
+
+    private void emitPopLocal(Local local) {
+        if (local.isCaptured) {
+            emit(OpCode.CLOSE_UPVALUE);
+        } else {
+            emit(OpCode.POP);
+        }
+    }
+
+    private void addLocal(Token name, boolean hasInitializer) {
+        if (current.locals.size() > MAX_OPERAND) {
+            error(name, "Too many local variables in function.");
+            return;
+        }
+        current.locals.add(new Local(name.lexeme, current.scopeDepth, hasInitializer));
+    }
+
+    /**
+     * Finishes a declaration. Locals are already in their slot, globals need to be stored in their cell.
+     */
+    private void defineVariable(Token name) {
+        if (current.scopeDepth == 0) {
+            emit(OpCode.DEFINE_GLOBAL, makeConstant(globals.cell(name.lexeme)));
+        }
+    }
+
+    /**
+     * Emits a read (or write, if isAssignment) of the given variable.
+     * Variables are looked up as locals, then upvalues, then fall back to globals.
+     */
+    private void namedVariable(Token name, boolean isAssignment) {
+        var slot = resolveLocal(current, name.lexeme);
+        if (slot != -1) {
+            var local = current.locals.get(slot);
+            emitVariableAccess(isAssignment ? OpCode.SET_LOCAL : OpCode.GET_LOCAL, slot, local.hasInitializer, name);
+            return;
+        }
+
+        var upvalue = resolveUpvalue(current, name);
+        if (upvalue != -1) {
+            var hasInitializer = current.upvalues.get(upvalue).hasInitializer();
+            emitVariableAccess(isAssignment ? OpCode.SET_UPVALUE : OpCode.GET_UPVALUE, upvalue, hasInitializer, name);
+            return;
+        }
+
+        emit(isAssignment ? OpCode.SET_GLOBAL : OpCode.GET_GLOBAL, makeConstant(globals.cell(name.lexeme)));
+    }
+
+    /**
+     * Variables declared without an initializer may be read before anything is assigned.
+     * Those reads get an extra check so they fail the same way the interpreter does.
+     */
+    private void emitVariableAccess(OpCode op, int index, boolean hasInitializer, Token name) {
+        emit(op, index);
+        if (!hasInitializer && (op == OpCode.GET_LOCAL || op == OpCode.GET_UPVALUE)) {
+            emit(OpCode.CHECK_INITIALIZED, makeConstant(name.lexeme));
+        }
+    }
+
+    private int resolveLocal(FunctionState state, String name) {
+        for (var i = state.locals.size() - 1; i >= 0; i--) {
+            if (state.locals.get(i).name.equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int resolveUpvalue(FunctionState state, Token name) {
+        if (state.enclosing == null) {
+            return -1;
+        }
+
+        var local = resolveLocal(state.enclosing, name.lexeme);
+        if (local != -1) {
+            var enclosingLocal = state.enclosing.locals.get(local);
+            enclosingLocal.isCaptured = true;
+            return addUpvalue(state, local, true, enclosingLocal.hasInitializer, name);
+        }
+
+        var upvalue = resolveUpvalue(state.enclosing, name);
+        if (upvalue != -1) {
+            var hasInitializer = state.enclosing.upvalues.get(upvalue).hasInitializer();
+            return addUpvalue(state, upvalue, false, hasInitializer, name);
+        }
+
+        return -1;
+    }
+
+    private int addUpvalue(FunctionState state, int index, boolean isLocal, boolean hasInitializer, Token name) {
+        // Reuse the upvalue if the closure already captures this variable
+        for (var i = 0; i < state.upvalues.size(); i++) {
+            var upvalue = state.upvalues.get(i);
+            if (upvalue.index() == index && upvalue.isLocal() == isLocal) {
+                return i;
+            }
+        }
+
+        if (state.upvalues.size() > MAX_OPERAND) {
+            error(name, "Too many closure variables in function.");
+            return 0;
+        }
+        state.upvalues.add(new Upvalue(index, isLocal, hasInitializer));
+        return state.upvalues.size() - 1;
+    }
+
+    private int makeConstant(Object value) {
+        var constant = currentChunk().addConstant(value);
+        if (constant > MAX_OPERAND) {
+            error(line, "Too many constants in one chunk.");
+            return 0;
+        }
+        return constant;
+    }
+
+    private int emitJump(OpCode op) {
+        emit(op);
+        // Placeholder offset, filled in by patchJump
+        emit(0xff);
+        emit(0xff);
+        return currentChunk().count - 2;
+    }
+
+    private void patchJump(int offset) {
+        // -2 to adjust for the jump offset itself
+        var jump = currentChunk().count - offset - 2;
+        if (jump > MAX_JUMP) {
+            error(line, "Too much code to jump over.");
+        }
+
+        currentChunk().code[offset] = (byte) ((jump >> 8) & 0xff);
+        currentChunk().code[offset + 1] = (byte) (jump & 0xff);
+    }
+
+    private void emitLoop(int loopStart) {
+        emit(OpCode.LOOP);
+
+        // +2 to also jump over the LOOP operands
+        var offset = currentChunk().count - loopStart + 2;
+        if (offset > MAX_JUMP) {
+            error(line, "Loop body too large.");
+        }
+
+        emit((offset >> 8) & 0xff);
+        emit(offset & 0xff);
+    }
+
+    private void emit(OpCode op) {
+        currentChunk().write(op, line);
+    }
+
+    private void emit(OpCode op, int operand) {
+        emit(op);
+        emit(operand);
+    }
+
+    private void emit(int value) {
+        currentChunk().write(value, line);
+    }
+
+    private Chunk currentChunk() {
+        return current.function.chunk;
+    }
+
+    private void error(Token token, String message) {
+        lox.error(token, message);
+        hadError = true;
+    }
+
+    private void error(int line, String message) {
+        lox.error(line, message);
+        hadError = true;
+    }
+
+    private void compile(Stmt statement) {
+        statement.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+}
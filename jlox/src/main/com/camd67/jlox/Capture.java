@@ -0,0 +1,9 @@
+package com.camd67.jlox;
+
+/**
+ * Describes one variable a function captures when it is created.
+ * Either a slot of the enclosing function's environment (isLocal) or
+ * one of the enclosing function's own captured variables.
+ */
+record Capture(boolean isLocal, int index) {
+}
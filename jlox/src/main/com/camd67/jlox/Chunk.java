@@ -0,0 +1,49 @@
+package com.camd67.jlox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A compiled sequence of bytecode along with the constants it references.
+ */
+class Chunk {
+    byte[] code = new byte[8];
+    /**
+     * The source line for each byte in code, used for error reporting.
+     */
+    int[] lines = new int[8];
+    int count = 0;
+    final List<Object> constants = new ArrayList<>();
+
+    void write(OpCode op, int line) {
+        write(op.ordinal(), line);
+    }
+
+    void write(int value, int line) {
+        if (count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+            lines = Arrays.copyOf(lines, count * 2);
+        }
+        code[count] = (byte) value;
+        lines[count] = line;
+        count++;
+    }
+
+    /**
+     * Adds a value to the constant pool, reusing an existing entry if
+     * an equal one is already present.
+     * Returns the index of the constant.
+     */
+    int addConstant(Object value) {
+        // Functions are compared by identity, everything else (strings, numbers) by value
+        for (var i = 0; i < constants.size(); i++) {
+            var existing = constants.get(i);
+            if (existing == value || (!(value instanceof VmFunction) && value != null && value.equals(existing))) {
+                return i;
+            }
+        }
+        constants.add(value);
+        return constants.size() - 1;
+    }
+}
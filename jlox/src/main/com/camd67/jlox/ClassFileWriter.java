@@ -0,0 +1,501 @@
+package com.camd67.jlox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Just enough of a class file writer for the JvmCompiler: a single class with a constant pool,
+ * fields, and methods made out of raw bytecode.
+ * Classes are written as version 49 (Java 5) so the JVM infers the stack map frames itself,
+ * which means branches don't need any bookkeeping besides their offsets.
+ */
+class ClassFileWriter {
+    static final int ACONST_NULL = 0x01;
+    static final int ICONST_0 = 0x03;
+    static final int ICONST_1 = 0x04;
+    static final int DCONST_0 = 0x0e;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC = 0x12;
+    static final int LDC_W = 0x13;
+    static final int LDC2_W = 0x14;
+    static final int DLOAD = 0x18;
+    static final int ALOAD = 0x19;
+    static final int AALOAD = 0x32;
+    static final int DSTORE = 0x39;
+    static final int ASTORE = 0x3a;
+    static final int AASTORE = 0x53;
+    static final int POP = 0x57;
+    static final int POP2 = 0x58;
+    static final int DUP = 0x59;
+    static final int DUP_X1 = 0x5a;
+    static final int DUP2 = 0x5c;
+    static final int SWAP = 0x5f;
+    static final int DADD = 0x63;
+    static final int DSUB = 0x67;
+    static final int DMUL = 0x6b;
+    static final int DDIV = 0x6f;
+    static final int DNEG = 0x77;
+    static final int IXOR = 0x82;
+    static final int DCMPL = 0x97;
+    static final int DCMPG = 0x98;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IFLT = 0x9b;
+    static final int IFGE = 0x9c;
+    static final int IFGT = 0x9d;
+    static final int IFLE = 0x9e;
+    static final int GOTO = 0xa7;
+    static final int ARETURN = 0xb0;
+    static final int RETURN = 0xb1;
+    static final int GETSTATIC = 0xb2;
+    static final int GETFIELD = 0xb4;
+    static final int PUTFIELD = 0xb5;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+    static final int INVOKEINTERFACE = 0xb9;
+    static final int ANEWARRAY = 0xbd;
+    static final int ATHROW = 0xbf;
+    static final int CHECKCAST = 0xc0;
+    static final int WIDE = 0xc4;
+
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_PRIVATE = 0x0002;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_DOUBLE = 6;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_STRING = 8;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_INTERFACE_METHODREF = 11;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    /**
+     * Longest string we're willing to put in the constant pool, anything bigger could
+     * overflow the 64k limit of a modified UTF-8 entry.
+     */
+    static final int MAX_STRING_CONSTANT = 0xffff / 3;
+
+    private final Bytes pool = new Bytes();
+    private final Map<String, Integer> poolIndices = new HashMap<>();
+    private int poolCount = 1;
+
+    private final int thisClass;
+    private final int superClass;
+    private final List<Integer> interfaces = new ArrayList<>();
+    private final Bytes fields = new Bytes();
+    private int fieldCount = 0;
+    private final Bytes methods = new Bytes();
+    private int methodCount = 0;
+
+    /**
+     * Names are internal names, like "java/lang/Object".
+     */
+    ClassFileWriter(String name, String superName, String... interfaceNames) {
+        thisClass = classRef(name);
+        superClass = classRef(superName);
+        for (var interfaceName : interfaceNames) {
+            interfaces.add(classRef(interfaceName));
+        }
+    }
+
+    void field(int access, String name, String descriptor) {
+        fields.u2(access);
+        fields.u2(utf8(name));
+        fields.u2(utf8(descriptor));
+        fields.u2(0);
+        fieldCount++;
+    }
+
+    /**
+     * Starts a method, reservedLocals is how many local variable slots are in use before any newLocal,
+     * including the parameters.
+     */
+    MethodWriter method(int access, String name, String descriptor, int reservedLocals) {
+        return new MethodWriter(access, name, descriptor, reservedLocals);
+    }
+
+    byte[] toByteArray() {
+        var out = new Bytes();
+        out.u4(0xcafebabe);
+        out.u2(0);
+        out.u2(49);
+        out.u2(poolCount);
+        out.append(pool);
+        out.u2(ACC_FINAL | ACC_SUPER);
+        out.u2(thisClass);
+        out.u2(superClass);
+        out.u2(interfaces.size());
+        for (var index : interfaces) {
+            out.u2(index);
+        }
+        out.u2(fieldCount);
+        out.append(fields);
+        out.u2(methodCount);
+        out.append(methods);
+        // No class attributes
+        out.u2(0);
+        return out.toByteArray();
+    }
+
+    int utf8(String value) {
+        return constant("U" + value, () -> {
+            pool.u1(CONSTANT_UTF8);
+            pool.utf8(value);
+        }, 1);
+    }
+
+    int classRef(String internalName) {
+        var name = utf8(internalName);
+        return constant("C" + internalName, () -> {
+            pool.u1(CONSTANT_CLASS);
+            pool.u2(name);
+        }, 1);
+    }
+
+    int string(String value) {
+        var utf8 = utf8(value);
+        return constant("S" + value, () -> {
+            pool.u1(CONSTANT_STRING);
+            pool.u2(utf8);
+        }, 1);
+    }
+
+    int doubleConstant(double value) {
+        var bits = Double.doubleToRawLongBits(value);
+        // Doubles take up two entries in the pool
+        return constant("D" + bits, () -> {
+            pool.u1(CONSTANT_DOUBLE);
+            pool.u4((int) (bits >>> 32));
+            pool.u4((int) bits);
+        }, 2);
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+        return memberRef(CONSTANT_FIELDREF, owner, name, descriptor);
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        return memberRef(CONSTANT_METHODREF, owner, name, descriptor);
+    }
+
+    int interfaceMethodRef(String owner, String name, String descriptor) {
+        return memberRef(CONSTANT_INTERFACE_METHODREF, owner, name, descriptor);
+    }
+
+    private int memberRef(int tag, String owner, String name, String descriptor) {
+        var ownerIndex = classRef(owner);
+        var nameIndex = utf8(name);
+        var descriptorIndex = utf8(descriptor);
+        var nameAndType = constant("N" + name + ":" + descriptor, () -> {
+            pool.u1(CONSTANT_NAME_AND_TYPE);
+            pool.u2(nameIndex);
+            pool.u2(descriptorIndex);
+        }, 1);
+        return constant(tag + owner + "." + name + ":" + descriptor, () -> {
+            pool.u1(tag);
+            pool.u2(ownerIndex);
+            pool.u2(nameAndType);
+        }, 1);
+    }
+
+    private int constant(String key, Runnable write, int size) {
+        var existing = poolIndices.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        var index = poolCount;
+        write.run();
+        poolCount += size;
+        poolIndices.put(key, index);
+        return index;
+    }
+
+    /**
+     * How much a method call changes the operand stack, given its descriptor.
+     */
+    private static int stackChange(String descriptor, boolean hasReceiver) {
+        var change = hasReceiver ? -1 : 0;
+        var i = 1;
+        while (descriptor.charAt(i) != ')') {
+            var type = descriptor.charAt(i);
+            change -= (type == 'D' || type == 'J') ? 2 : 1;
+            while (descriptor.charAt(i) == '[') {
+                i++;
+            }
+            if (descriptor.charAt(i) == 'L') {
+                i = descriptor.indexOf(';', i);
+            }
+            i++;
+        }
+        return change + returnSize(descriptor);
+    }
+
+    private static int returnSize(String descriptor) {
+        var returnType = descriptor.charAt(descriptor.indexOf(')') + 1);
+        if (returnType == 'V') {
+            return 0;
+        }
+        return (returnType == 'D' || returnType == 'J') ? 2 : 1;
+    }
+
+    /**
+     * A forward or backward branch target inside a method.
+     */
+    static class Label {
+        private int position = -1;
+        private final List<int[]> fixups = new ArrayList<>();
+    }
+
+    /**
+     * Writes the code of a single method, tracking how deep the operand stack gets.
+     */
+    class MethodWriter {
+        private final int access;
+        private final int name;
+        private final int descriptor;
+        private final Bytes code = new Bytes();
+        private int stack = 0;
+        private int maxStack = 0;
+        private int maxLocals;
+
+        private MethodWriter(int access, String name, String descriptor, int reservedLocals) {
+            this.access = access;
+            this.name = utf8(name);
+            this.descriptor = utf8(descriptor);
+            this.maxLocals = reservedLocals;
+        }
+
+        /**
+         * Emits an instruction without operands.
+         */
+        void op(int opcode, int stackChange) {
+            code.u1(opcode);
+            adjustStack(stackChange);
+        }
+
+        void pushInt(int value) {
+            if (value == 0 || value == 1) {
+                op(value == 0 ? ICONST_0 : ICONST_1, 1);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                code.u1(BIPUSH);
+                code.u1(value);
+                adjustStack(1);
+            } else {
+                code.u1(SIPUSH);
+                code.u2(value);
+                adjustStack(1);
+            }
+        }
+
+        void pushString(String value) {
+            constantInstruction(string(value));
+        }
+
+        void pushDouble(double value) {
+            code.u1(LDC2_W);
+            code.u2(doubleConstant(value));
+            adjustStack(2);
+        }
+
+        private void constantInstruction(int index) {
+            if (index <= 0xff) {
+                code.u1(LDC);
+                code.u1(index);
+            } else {
+                code.u1(LDC_W);
+                code.u2(index);
+            }
+            adjustStack(1);
+        }
+
+        /**
+         * Emits a load or store of a local variable.
+         */
+        void local(int opcode, int index) {
+            var size = (opcode == DLOAD || opcode == DSTORE) ? 2 : 1;
+            maxLocals = Math.max(maxLocals, index + size);
+            if (index <= 0xff) {
+                code.u1(opcode);
+                code.u1(index);
+            } else {
+                code.u1(WIDE);
+                code.u1(opcode);
+                code.u2(index);
+            }
+            adjustStack((opcode == ALOAD || opcode == DLOAD) ? size : -size);
+        }
+
+        void type(int opcode, String internalName) {
+            code.u1(opcode);
+            code.u2(classRef(internalName));
+            // checkcast leaves the stack alone, anewarray swaps the length for the array
+        }
+
+        void field(int opcode, String owner, String name, String descriptor) {
+            code.u1(opcode);
+            code.u2(fieldRef(owner, name, descriptor));
+            var size = (descriptor.equals("D") || descriptor.equals("J")) ? 2 : 1;
+            switch (opcode) {
+                case GETSTATIC -> adjustStack(size);
+                case GETFIELD -> adjustStack(size - 1);
+                case PUTFIELD -> adjustStack(-size - 1);
+                default -> throw new IllegalArgumentException("Unknown field instruction " + opcode);
+            }
+        }
+
+        void invoke(int opcode, String owner, String name, String descriptor) {
+            code.u1(opcode);
+            if (opcode == INVOKEINTERFACE) {
+                code.u2(interfaceMethodRef(owner, name, descriptor));
+                // The "count" operand is the size of the arguments including the receiver
+                code.u1(returnSize(descriptor) - stackChange(descriptor, true));
+                code.u1(0);
+            } else {
+                code.u2(methodRef(owner, name, descriptor));
+            }
+            adjustStack(stackChange(descriptor, opcode != INVOKESTATIC));
+        }
+
+        /**
+         * Emits a branch instruction to a label, which may not be placed yet.
+         */
+        void jump(int opcode, Label label) {
+            var instruction = code.length();
+            code.u1(opcode);
+            if (label.position != -1) {
+                code.u2(label.position - instruction);
+            } else {
+                label.fixups.add(new int[]{instruction, code.length()});
+                code.u2(0);
+            }
+            if (opcode != GOTO) {
+                // Conditional jumps pop the int they check
+                adjustStack(-1);
+            }
+        }
+
+        void place(Label label) {
+            label.position = code.length();
+            for (var fixup : label.fixups) {
+                code.putU2(fixup[1], label.position - fixup[0]);
+            }
+        }
+
+        /**
+         * Current depth of the operand stack, for restoring it after code that always jumps away.
+         */
+        int stack() {
+            return stack;
+        }
+
+        void setStack(int stack) {
+            this.stack = stack;
+        }
+
+        int newLocal(int size) {
+            var index = maxLocals;
+            maxLocals += size;
+            return index;
+        }
+
+        void end() {
+            if (code.length() > 0xffff / 2) {
+                // Branch offsets are only 16 bits
+                throw new IllegalStateException("Method too large");
+            }
+            methods.u2(access);
+            methods.u2(name);
+            methods.u2(descriptor);
+            methods.u2(1);
+            methods.u2(utf8("Code"));
+            methods.u4(12 + code.length());
+            methods.u2(maxStack);
+            methods.u2(maxLocals);
+            methods.u4(code.length());
+            methods.append(code);
+            // No exception table or attributes
+            methods.u2(0);
+            methods.u2(0);
+            methodCount++;
+        }
+
+        private void adjustStack(int change) {
+            stack += change;
+            maxStack = Math.max(maxStack, stack);
+        }
+    }
+
+    /**
+     * A growable array of big endian bytes.
+     */
+    private static class Bytes {
+        private byte[] data = new byte[64];
+        private int length = 0;
+
+        void u1(int value) {
+            if (length == data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            data[length++] = (byte) value;
+        }
+
+        void u2(int value) {
+            u1(value >>> 8);
+            u1(value);
+        }
+
+        void u4(int value) {
+            u2(value >>> 16);
+            u2(value);
+        }
+
+        void putU2(int position, int value) {
+            data[position] = (byte) (value >>> 8);
+            data[position + 1] = (byte) value;
+        }
+
+        /**
+         * Writes a string in the "modified UTF-8" the class file format uses.
+         */
+        void utf8(String value) {
+            var start = length;
+            u2(0);
+            for (var i = 0; i < value.length(); i++) {
+                var c = value.charAt(i);
+                if (c != 0 && c < 0x80) {
+                    u1(c);
+                } else if (c < 0x800) {
+                    u1(0xc0 | (c >> 6));
+                    u1(0x80 | (c & 0x3f));
+                } else {
+                    u1(0xe0 | (c >> 12));
+                    u1(0x80 | ((c >> 6) & 0x3f));
+                    u1(0x80 | (c & 0x3f));
+                }
+            }
+            putU2(start, length - start - 2);
+        }
+
+        void append(Bytes other) {
+            for (var i = 0; i < other.length; i++) {
+                u1(other.data[i]);
+            }
+        }
+
+        int length() {
+            return length;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(data, length);
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package com.camd67.jlox;
+
+/**
+ * The body of a lox function, compiled to JVM bytecode by the JvmCompiler.
+ */
+interface CompiledFunction {
+    /**
+     * Runs the function body and returns its return value.
+     * The receiver is only set for methods.
+     */
+    Object call(Interpreter interpreter, LoxInstance receiver, Object[] arguments);
+}
@@ -0,0 +1,158 @@
+package com.camd67.jlox;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Evaluates operators whose operands are all literals ahead of time, replacing them with their result.
+ * Locals that are initialized with a literal and never reassigned are replaced by that literal too,
+ * so expressions using them can be folded as well.
+ * Anything that would fail at runtime, like dividing by zero, is left alone so it still fails the same way.
+ */
+class ConstantFolder extends AstRewriter {
+    /**
+     * Marks an operation that can't be folded, since null is nil.
+     */
+    private static final Object NOT_CONSTANT = new Object();
+
+    /**
+     * Values of the constant locals in the current frame, by slot.
+     */
+    private Map<Integer, Object> constants = new HashMap<>();
+
+    void fold(List<Stmt> statements) {
+        rewrite(statements);
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        super.visitBinaryExpr(expr);
+        if (expr.left instanceof Expr.Literal left && expr.right instanceof Expr.Literal right) {
+            return literal(fold(expr.operator.type, left.value, right.value), expr);
+        }
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        super.visitLogicalExpr(expr);
+        if (expr.left instanceof Expr.Literal left) {
+            var isTruthy = Interpreter.isTruthy(left.value);
+            var leftDecides = expr.operator.type == TokenType.OR ? isTruthy : !isTruthy;
+            return leftDecides ? left : expr.right;
+        }
+        return expr;
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        super.visitGroupingExpr(expr);
+        if (expr.expression instanceof Expr.Literal literal) {
+            return literal;
+        }
+        return expr;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        super.visitUnaryExpr(expr);
+        if (expr.right instanceof Expr.Literal right) {
+            if (expr.operator.type == TokenType.BANG) {
+                return new Expr.Literal(!Interpreter.isTruthy(right.value));
+            } else if (right.value instanceof Double number) {
+                return new Expr.Literal(-number);
+            }
+        }
+        return expr;
+    }
+
+    @Override
+    public Expr visitTernaryExpr(Expr.Ternary expr) {
+        super.visitTernaryExpr(expr);
+        if (expr.check instanceof Expr.Literal check) {
+            return Interpreter.isTruthy(check.value) ? expr.left : expr.right;
+        }
+        return expr;
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        if (expr.slot != -1 && constants.containsKey(expr.slot)) {
+            return new Expr.Literal(constants.get(expr.slot));
+        }
+        return expr;
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        super.visitVarStmt(stmt);
+        if (stmt.singleAssignment && stmt.initializer instanceof Expr.Literal literal) {
+            constants.put(stmt.slot, literal.value);
+        }
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        // Slots are only unique within a frame, and the function can't see the enclosing frame's slots anyway
+        var enclosing = constants;
+        constants = new HashMap<>();
+        super.visitFunctionStmt(stmt);
+        constants = enclosing;
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        if (!stmt.needsEnvironment) {
+            return super.visitBlockStmt(stmt);
+        }
+
+        var enclosing = constants;
+        constants = new HashMap<>();
+        super.visitBlockStmt(stmt);
+        constants = enclosing;
+        return stmt;
+    }
+
+    private static Expr literal(Object value, Expr original) {
+        return value == NOT_CONSTANT ? original : new Expr.Literal(value);
+    }
+
+    /**
+     * Applies a binary operator the same way the Interpreter would.
+     * Returns NOT_CONSTANT instead of failing when the operands aren't valid for it.
+     */
+    private static Object fold(TokenType operator, Object left, Object right) {
+        switch (operator) {
+            case EQUAL_EQUAL -> {
+                return Interpreter.isEqual(left, right);
+            }
+            case BANG_EQUAL -> {
+                return !Interpreter.isEqual(left, right);
+            }
+            case PLUS -> {
+                if ((left instanceof Double && right instanceof Double)
+                    || left instanceof String || right instanceof String) {
+                    return Interpreter.add(null, left, right);
+                }
+                return NOT_CONSTANT;
+            }
+        }
+
+        if (!(left instanceof Double l) || !(right instanceof Double r)) {
+            return NOT_CONSTANT;
+        }
+        return switch (operator) {
+            case MINUS -> l - r;
+            case STAR -> l * r;
+            case SLASH -> r == 0.0 ? NOT_CONSTANT : l / r;
+            case GREATER -> l > r;
+            case GREATER_EQUAL -> l >= r;
+            case LESS -> l < r;
+            case LESS_EQUAL -> l <= r;
+            default -> NOT_CONSTANT;
+        };
+    }
+}
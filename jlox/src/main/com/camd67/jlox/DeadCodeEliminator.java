@@ -0,0 +1,100 @@
+package com.camd67.jlox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Removes statements that can never run or never matter: branches of ifs with a literal condition,
+ * loops whose condition is a literal false, statements after a return, break or continue,
+ * and local functions nothing refers to.
+ * Runs after the ConstantFolder, which is what turns most conditions into literals.
+ */
+class DeadCodeEliminator extends AstRewriter {
+    /**
+     * Number of statements and branches removed so far.
+     */
+    private int removed = 0;
+
+    /**
+     * Eliminates dead code from the statements, returning how many statements and branches were removed.
+     */
+    int eliminate(List<Stmt> statements) {
+        rewrite(statements);
+        return removed;
+    }
+
+    @Override
+    void rewrite(List<Stmt> statements) {
+        super.rewrite(statements);
+
+        var i = 0;
+        while (i < statements.size()) {
+            var statement = statements.get(i);
+            // Anything already removed is left behind as an empty block
+            if (statement instanceof Stmt.Block block && block.statements.isEmpty()) {
+                statements.remove(i);
+                continue;
+            }
+
+            i++;
+            if (alwaysExits(statement) && i < statements.size()) {
+                removed += statements.size() - i;
+                statements.subList(i, statements.size()).clear();
+            }
+        }
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        super.visitIfStmt(stmt);
+        if (stmt.condition instanceof Expr.Literal condition) {
+            removed++;
+            if (Interpreter.isTruthy(condition.value)) {
+                return stmt.thenBranch;
+            }
+            return stmt.elseBranch != null ? stmt.elseBranch : nothing();
+        }
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        super.visitWhileStmt(stmt);
+        if (stmt.condition instanceof Expr.Literal condition && !Interpreter.isTruthy(condition.value)) {
+            removed++;
+            return nothing();
+        }
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        if (stmt.unused) {
+            removed++;
+            return nothing();
+        }
+        return super.visitFunctionStmt(stmt);
+    }
+
+    /**
+     * A statement that does nothing, for places that can't be left empty like the body of a loop.
+     */
+    private static Stmt nothing() {
+        return new Stmt.Block(new ArrayList<>());
+    }
+
+    /**
+     * If running the statement never continues on to the next one.
+     * Blocks have already had everything after their first exit removed, so only their last statement matters.
+     */
+    private static boolean alwaysExits(Stmt stmt) {
+        if (stmt instanceof Stmt.Return || stmt instanceof Stmt.Break || stmt instanceof Stmt.Continue) {
+            return true;
+        } else if (stmt instanceof Stmt.Block block) {
+            return !block.statements.isEmpty() && alwaysExits(block.statements.get(block.statements.size() - 1));
+        } else if (stmt instanceof Stmt.If ifStmt) {
+            return ifStmt.elseBranch != null && alwaysExits(ifStmt.thenBranch) && alwaysExits(ifStmt.elseBranch);
+        }
+        return false;
+    }
+}
@@ -1,106 +1,113 @@
 package com.camd67.jlox;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
 
 /**
- * Stores the state (variables) for a given environment.
+ * Stores the state (variables) for a single function call, or a top level block.
+ * Variables are stored by slot, which the Resolver assigns. Blocks inside a function
+ * store their variables in the function's environment too.
+ * Variables from enclosing functions are only reachable through the upvalues the
+ * function captured when it was created, so environments don't keep each other alive.
  */
 public class Environment {
     /**
-     * Placeholder for what we can put in the map to signal
+     * Placeholder for what we can put in a slot to signal
      * "this variable is defined, but not assigned a value yet"
      * we can't use nil/null since that is a valid value to assign
      */
-    private static final Object VARIABLE_NOT_INITIALIZED = new Object();
+    static final Object VARIABLE_NOT_INITIALIZED = new Object();
 
-    private final Map<String, Object> values = new HashMap<>();
+    static final Box[] NO_UPVALUES = new Box[0];
 
     /**
-     * The enclosing environment that parent's this environment.
-     * Nullable if we're at the root environment.
+     * Storage for a variable that is captured by a closure.
+     * The slot holds the box instead of the value, so the environment and
+     * every closure that captured it see the same variable.
      */
-    final Environment enclosing;
+    static class Box {
+        Object value;
 
-    public Environment() {
-        enclosing = null;
+        Box(Object value) {
+            this.value = value;
+        }
     }
 
-    public Environment(Environment enclosing) {
-        this.enclosing = enclosing;
-    }
+    private final Object[] values;
 
     /**
-     * Gets a variable from our environment or any of the enclosing environments.
-     * Throws a runtime error if that variable is not defined yet.
+     * Variables captured from enclosing functions, see Capture.
      */
-    Object get(Token name) {
-        if (values.containsKey(name.lexeme)) {
-            // First look in our env for the token
-            var value = values.get(name.lexeme);
+    private final Box[] upvalues;
 
-            if (value != VARIABLE_NOT_INITIALIZED) {
-                return value;
-            } else {
-                throw new RuntimeError(name, "Variable not yet initialized '" + name.lexeme + "'.");
-            }
-        } else if (enclosing != null) {
-            // If not, continue up the chain
-            return enclosing.get(name);
-        } else {
-            throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
-        }
+    public Environment(int size, Box[] upvalues) {
+        this.values = new Object[size];
+        this.upvalues = upvalues;
     }
 
     /**
-     * Defines a variable in our environment with no initializer
+     * Defines a variable in the given slot with a value.
+     * Boxed variables get a fresh box every time they're defined, so closures made on
+     * different runs of the same block (like in a loop) each get their own variable.
      */
-    void define(String name) {
-        values.put(name, VARIABLE_NOT_INITIALIZED);
+    void define(int slot, boolean boxed, Object value) {
+        values[slot] = boxed ? new Box(value) : value;
     }
 
     /**
-     * Defines a variable in our environment with a value
+     * Gets the variable in the given slot.
+     * Throws a runtime error if that variable hasn't been assigned yet.
      */
-    void define(String name, Object value) {
-        values.put(name, value);
+    Object get(int slot, boolean boxed, Token name) {
+        var value = values[slot];
+        if (boxed) {
+            value = ((Box) value).value;
+        }
+        return checkInitialized(value, name);
     }
 
-    /**
-     * Assigns a value to a given token, in this environment
-     * or the closest enclosing environment.
-     */
-    public void assign(Token name, Object value) {
-        if (values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
-        } else if (enclosing != null) {
-            enclosing.assign(name, value);
+    void assign(int slot, boolean boxed, Object value) {
+        if (boxed) {
+            ((Box) values[slot]).value = value;
         } else {
-            throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+            values[slot] = value;
         }
     }
 
-    public Object getAt(int distance, String name) {
-        return ancestor(distance).values.get(name);
+    /**
+     * Wraps the value already in the slot in a box. Used for captured parameters.
+     */
+    void box(int slot) {
+        values[slot] = new Box(values[slot]);
+    }
+
+    Object getUpvalue(int index, Token name) {
+        return checkInitialized(upvalues[index].value, name);
+    }
+
+    void assignUpvalue(int index, Object value) {
+        upvalues[index].value = value;
     }
 
     /**
-     * Returns back the environment that is distance steps away from
-     * the current environment.
-     * Mostly used to resolve variables to a specific environment.
+     * Collects the variables a new closure captures out of this environment.
      */
-    private Environment ancestor(int distance) {
-        var environment = this;
-        for (var i = 0; i < distance; i++) {
-            environment = environment.enclosing;
+    Box[] capture(List<Capture> captures) {
+        var captured = new Box[captures.size()];
+        for (var i = 0; i < captured.length; i++) {
+            var capture = captures.get(i);
+            if (capture.isLocal()) {
+                captured[i] = (Box) values[capture.index()];
+            } else {
+                captured[i] = upvalues[capture.index()];
+            }
         }
-        return environment;
+        return captured;
     }
 
-    /**
-     * Assigns the given name/value pair at the environment distance steps away.
-     */
-    public void assignAt(int distance, Token name, Object value) {
-        ancestor(distance).values.put(name.lexeme, value);
+    static Object checkInitialized(Object value, Token name) {
+        if (value == VARIABLE_NOT_INITIALIZED) {
+            throw new RuntimeError(name, "Variable not yet initialized '" + name.lexeme + "'.");
+        }
+        return value;
     }
 }
@@ -9,6 +9,7 @@ abstract class Expr {
     interface Visitor<R> {
         R visitAssignExpr(Assign expr);
         R visitBinaryExpr(Binary expr);
+        R visitLogicalExpr(Logical expr);
         R visitCallExpr(Call expr);
         R visitGetExpr(Get expr);
         R visitSetExpr(Set expr);
@@ -25,7 +26,14 @@ abstract class Expr {
     static class Assign extends Expr {
 
         final Token type;
-        final Expr value;
+        Expr value;
+
+        // Filled in after parsing
+        int slot = -1;
+        boolean boxed = false;
+        int upvalue = -1;
+        GlobalEnvironment.Cell global = null;
+        InferredType inferredType = InferredType.UNKNOWN;
 
         Assign(Token type, Expr value) {
             this.type = type;
@@ -40,9 +48,12 @@ abstract class Expr {
 
     static class Binary extends Expr {
 
-        final Expr left;
+        Expr left;
         final Token operator;
-        final Expr right;
+        Expr right;
+
+        // Filled in after parsing
+        Specialization specialization = Specialization.UNINITIALIZED;
 
         Binary(Expr left, Token operator, Expr right) {
             this.left = left;
@@ -56,12 +67,38 @@ abstract class Expr {
         }
     }
 
+    static class Logical extends Expr {
+
+        Expr left;
+        final Token operator;
+        Expr right;
+
+        // Filled in after parsing
+        InferredType inferredType = InferredType.UNKNOWN;
+
+        Logical(Expr left, Token operator, Expr right) {
+            this.left = left;
+            this.operator = operator;
+            this.right = right;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitLogicalExpr(this);
+        }
+    }
+
     static class Call extends Expr {
 
-        final Expr callee;
+        Expr callee;
         final Token paren;
         final List<Expr> arguments;
 
+        // Filled in after parsing
+        Stmt.Function inlined = null;
+        Expr inlinedBody = null;
+        int inlinedSlot = -1;
+
         Call(Expr callee, Token paren, List<Expr> arguments) {
             this.callee = callee;
             this.paren = paren;
@@ -76,9 +113,12 @@ abstract class Expr {
 
     static class Get extends Expr {
 
-        final Expr object;
+        Expr object;
         final Token name;
 
+        // Filled in after parsing
+        PropertyCache cache = new PropertyCache();
+
         Get(Expr object, Token name) {
             this.object = object;
             this.name = name;
@@ -92,9 +132,12 @@ abstract class Expr {
 
     static class Set extends Expr {
 
-        final Expr object;
+        Expr object;
         final Token name;
-        final Expr value;
+        Expr value;
+
+        // Filled in after parsing
+        PropertyCache cache = new PropertyCache();
 
         Set(Expr object, Token name, Expr value) {
             this.object = object;
@@ -112,6 +155,11 @@ abstract class Expr {
 
         final Token keyword;
 
+        // Filled in after parsing
+        int slot = -1;
+        boolean boxed = false;
+        int upvalue = -1;
+
         This(Token keyword) {
             this.keyword = keyword;
         }
@@ -124,7 +172,7 @@ abstract class Expr {
 
     static class Grouping extends Expr {
 
-        final Expr expression;
+        Expr expression;
 
         Grouping(Expr expression) {
             this.expression = expression;
@@ -153,7 +201,7 @@ abstract class Expr {
     static class Unary extends Expr {
 
         final Token operator;
-        final Expr right;
+        Expr right;
 
         Unary(Token operator, Expr right) {
             this.operator = operator;
@@ -168,9 +216,12 @@ abstract class Expr {
 
     static class Ternary extends Expr {
 
-        final Expr check;
-        final Expr left;
-        final Expr right;
+        Expr check;
+        Expr left;
+        Expr right;
+
+        // Filled in after parsing
+        InferredType inferredType = InferredType.UNKNOWN;
 
         Ternary(Expr check, Expr left, Expr right) {
             this.check = check;
@@ -188,6 +239,13 @@ abstract class Expr {
 
         final Token name;
 
+        // Filled in after parsing
+        int slot = -1;
+        boolean boxed = false;
+        int upvalue = -1;
+        GlobalEnvironment.Cell global = null;
+        InferredType inferredType = InferredType.UNKNOWN;
+
         Variable(Token name) {
             this.name = name;
         }
@@ -0,0 +1,86 @@
+package com.camd67.jlox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stores the state (variables) for the global scope.
+ * Unlike local scopes, globals can't be resolved ahead of time
+ * (they may be defined after they're referenced) so each global name
+ * gets a cell the first time it's seen. Code referencing a global holds
+ * on to the cell so later accesses skip the name lookup entirely.
+ */
+public class GlobalEnvironment {
+    /**
+     * Holds the value of a single global.
+     * Cells are never removed, so a cell stays valid even if the global is redefined (like in the REPL).
+     */
+    static class Cell {
+        /**
+         * Placeholder for a global that has been referenced but never defined.
+         */
+        private static final Object UNDEFINED = new Object();
+
+        final String name;
+        private Object value = UNDEFINED;
+
+        private Cell(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Gets the value of the global.
+         * Throws a runtime error if that variable is not defined or initialized yet.
+         */
+        Object get(Token token) {
+            var current = value;
+            if (current == UNDEFINED) {
+                throw new RuntimeError(token, "Undefined variable '" + name + "'.");
+            } else if (current == Environment.VARIABLE_NOT_INITIALIZED) {
+                throw new RuntimeError(token, "Variable not yet initialized '" + name + "'.");
+            }
+            return current;
+        }
+
+        /**
+         * Assigns a value to an already defined global.
+         */
+        void assign(Token token, Object value) {
+            if (this.value == UNDEFINED) {
+                throw new RuntimeError(token, "Undefined variable '" + name + "'.");
+            }
+            this.value = value;
+        }
+
+        void define(Object value) {
+            this.value = value;
+        }
+
+        boolean isDefined() {
+            return value != UNDEFINED;
+        }
+
+        /**
+         * Gets the value without any checks, see isDefined.
+         */
+        Object value() {
+            return value;
+        }
+    }
+
+    private final Map<String, Cell> cells = new HashMap<>();
+
+    /**
+     * Returns the cell for the given global, creating an undefined one if we haven't seen it before.
+     */
+    Cell cell(String name) {
+        return cells.computeIfAbsent(name, Cell::new);
+    }
+
+    /**
+     * Defines a global with a value
+     */
+    void define(String name, Object value) {
+        cell(name).define(value);
+    }
+}
@@ -0,0 +1,39 @@
+package com.camd67.jlox;
+
+/**
+ * What the TypeInferrer proved an expression always evaluates to, if it evaluates at all.
+ */
+enum InferredType {
+    /**
+     * Could be anything, so the engine has to check at runtime.
+     */
+    UNKNOWN,
+    NUMBER,
+    STRING,
+    BOOLEAN,
+    NIL,
+    ;
+
+    /**
+     * The type of a value, like a literal's.
+     */
+    static InferredType of(Object value) {
+        if (value instanceof Double) {
+            return NUMBER;
+        } else if (value instanceof String) {
+            return STRING;
+        } else if (value instanceof Boolean) {
+            return BOOLEAN;
+        } else if (value == null) {
+            return NIL;
+        }
+        return UNKNOWN;
+    }
+
+    /**
+     * The type of something that could be either type.
+     */
+    InferredType join(InferredType other) {
+        return this == other ? this : UNKNOWN;
+    }
+}
@@ -0,0 +1,276 @@
+package com.camd67.jlox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Inlines calls to small global functions, so the Interpreter evaluates what the function returns
+ * right at the call instead of allocating arguments and an environment for a real call.
+ * Only functions whose body returns a single expression (or picks one of two with an if) qualify.
+ * Each call gets its own copy of that expression, reading its arguments out of slots added to the caller's frame.
+ * The Interpreter only uses the copy while the global still holds the function it came from,
+ * so redefining or reassigning the function falls back to a real call.
+ */
+class Inliner extends AstRewriter {
+    /**
+     * Largest returned expression, in nodes, that's worth inlining.
+     */
+    private static final int MAX_INLINED_SIZE = 16;
+
+    private record Inlinable(Stmt.Function declaration, Expr body) {
+    }
+
+    /**
+     * Global functions that can be inlined, by name.
+     */
+    private final Map<String, Inlinable> inlinable = new HashMap<>();
+
+    /**
+     * The function or top level block whose environment we're in, or null at the top level where there isn't one.
+     */
+    private Stmt frame = null;
+
+    void inline(List<Stmt> statements) {
+        findInlinable(statements);
+        if (!inlinable.isEmpty()) {
+            rewrite(statements);
+        }
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        super.visitCallExpr(expr);
+        if (frame != null
+            && expr.callee instanceof Expr.Variable callee
+            && callee.slot == -1
+            && callee.upvalue == -1) {
+            var target = inlinable.get(callee.name.lexeme);
+            // Anything that would fail the arity check is left to the real call to report
+            if (target != null && target.declaration.params.size() == expr.arguments.size()) {
+                expr.inlined = target.declaration;
+                expr.inlinedSlot = reserveSlots(expr.arguments.size());
+                expr.inlinedBody = new Copier(expr.inlinedSlot).copy(target.body);
+            }
+        }
+        return expr;
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.tailCall) {
+            // Tail calls already don't grow the stack, inlining them would stop the calls in the body being tail calls
+            super.visitCallExpr((Expr.Call) stmt.value);
+            return stmt;
+        }
+        return super.visitReturnStmt(stmt);
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        var enclosing = frame;
+        frame = stmt;
+        super.visitFunctionStmt(stmt);
+        frame = enclosing;
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        if (!stmt.needsEnvironment) {
+            return super.visitBlockStmt(stmt);
+        }
+
+        var enclosing = frame;
+        frame = stmt;
+        super.visitBlockStmt(stmt);
+        frame = enclosing;
+        return stmt;
+    }
+
+    /**
+     * Adds slots to the end of the current frame's environment, returning the first one.
+     */
+    private int reserveSlots(int count) {
+        int first;
+        if (frame instanceof Stmt.Function function) {
+            first = function.environmentSize;
+            function.environmentSize += count;
+        } else {
+            var block = (Stmt.Block) frame;
+            first = block.environmentSize;
+            block.environmentSize += count;
+        }
+        return first;
+    }
+
+    /**
+     * Finds the functions declared at the top level that are small enough to inline.
+     * Names that are declared more than once are skipped, they'd never get past the check for the right function.
+     * Memoized functions are skipped too, the inlined copy would bypass their cache.
+     */
+    private void findInlinable(List<Stmt> statements) {
+        var declared = new HashSet<String>();
+        var redeclared = new HashSet<String>();
+        for (var statement : statements) {
+            Token name = null;
+            if (statement instanceof Stmt.Function function) {
+                name = function.name;
+            } else if (statement instanceof Stmt.Var var) {
+                name = var.name;
+            } else if (statement instanceof Stmt.Class klass) {
+                name = klass.name;
+            }
+            if (name != null && !declared.add(name.lexeme)) {
+                redeclared.add(name.lexeme);
+            }
+        }
+
+        for (var statement : statements) {
+            if (!(statement instanceof Stmt.Function function)
+                || redeclared.contains(function.name.lexeme)
+                || !function.captures.isEmpty()
+                || function.memo != null) {
+                continue;
+            }
+
+            var body = returnedExpression(function.body);
+            if (body != null) {
+                var copier = new Copier(0);
+                copier.copy(body);
+                if (copier.size <= MAX_INLINED_SIZE) {
+                    inlinable.put(function.name.lexeme, new Inlinable(function, body));
+                }
+            }
+        }
+    }
+
+    /**
+     * The single expression a function body returns, or null if it does anything else.
+     * Returning one of two expressions based on an if becomes a ternary.
+     */
+    private static Expr returnedExpression(List<Stmt> body) {
+        if (body.size() == 1) {
+            if (body.get(0) instanceof Stmt.If ifStmt && ifStmt.elseBranch != null) {
+                return ternary(ifStmt.condition, returned(ifStmt.thenBranch), returned(ifStmt.elseBranch));
+            }
+            return returned(body.get(0));
+        } else if (body.size() == 2 && body.get(0) instanceof Stmt.If ifStmt && ifStmt.elseBranch == null) {
+            return ternary(ifStmt.condition, returned(ifStmt.thenBranch), returned(body.get(1)));
+        }
+        return null;
+    }
+
+    private static Expr ternary(Expr condition, Expr thenValue, Expr elseValue) {
+        if (thenValue == null || elseValue == null) {
+            return null;
+        }
+        return new Expr.Ternary(condition, thenValue, elseValue);
+    }
+
+    private static Expr returned(Stmt stmt) {
+        if (stmt instanceof Stmt.Return returnStmt) {
+            return returnStmt.value;
+        } else if (stmt instanceof Stmt.Block block && block.statements.size() == 1) {
+            return returned(block.statements.get(0));
+        }
+        return null;
+    }
+
+    /**
+     * Copies an inlined expression, moving the function's parameters to the slots reserved for them.
+     * The function doesn't capture anything or declare other locals, so every slot it uses is a parameter.
+     */
+    private static class Copier implements Expr.Visitor<Expr> {
+        private final int firstSlot;
+
+        /**
+         * Number of nodes copied so far.
+         */
+        int size = 0;
+
+        Copier(int firstSlot) {
+            this.firstSlot = firstSlot;
+        }
+
+        Expr copy(Expr expr) {
+            size++;
+            return expr.accept(this);
+        }
+
+        @Override
+        public Expr visitAssignExpr(Expr.Assign expr) {
+            var copy = new Expr.Assign(expr.type, copy(expr.value));
+            if (expr.slot != -1) {
+                copy.slot = firstSlot + expr.slot;
+            }
+            return copy;
+        }
+
+        @Override
+        public Expr visitBinaryExpr(Expr.Binary expr) {
+            return new Expr.Binary(copy(expr.left), expr.operator, copy(expr.right));
+        }
+
+        @Override
+        public Expr visitLogicalExpr(Expr.Logical expr) {
+            return new Expr.Logical(copy(expr.left), expr.operator, copy(expr.right));
+        }
+
+        @Override
+        public Expr visitCallExpr(Expr.Call expr) {
+            var arguments = new ArrayList<Expr>();
+            for (var argument : expr.arguments) {
+                arguments.add(copy(argument));
+            }
+            return new Expr.Call(copy(expr.callee), expr.paren, arguments);
+        }
+
+        @Override
+        public Expr visitGetExpr(Expr.Get expr) {
+            return new Expr.Get(copy(expr.object), expr.name);
+        }
+
+        @Override
+        public Expr visitSetExpr(Expr.Set expr) {
+            return new Expr.Set(copy(expr.object), expr.name, copy(expr.value));
+        }
+
+        @Override
+        public Expr visitThisExpr(Expr.This expr) {
+            // Only methods have this, and those are never inlined
+            throw new IllegalStateException("Can't inline 'this'");
+        }
+
+        @Override
+        public Expr visitGroupingExpr(Expr.Grouping expr) {
+            return new Expr.Grouping(copy(expr.expression));
+        }
+
+        @Override
+        public Expr visitLiteralExpr(Expr.Literal expr) {
+            return new Expr.Literal(expr.value);
+        }
+
+        @Override
+        public Expr visitUnaryExpr(Expr.Unary expr) {
+            return new Expr.Unary(expr.operator, copy(expr.right));
+        }
+
+        @Override
+        public Expr visitTernaryExpr(Expr.Ternary expr) {
+            return new Expr.Ternary(copy(expr.check), copy(expr.left), copy(expr.right));
+        }
+
+        @Override
+        public Expr visitVariableExpr(Expr.Variable expr) {
+            var copy = new Expr.Variable(expr.name);
+            if (expr.slot != -1) {
+                copy.slot = firstSlot + expr.slot;
+            }
+            return copy;
+        }
+    }
+}
@@ -1,72 +1,74 @@
 package com.camd67.jlox;
 
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-
-public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
-    private enum State {
-        /**
-         * If we're in a loop during normal execution
-         */
-        IN_LOOP,
-
-        /**
-         * Track if we're trying to break out of a loop or not.
-         * This seems like it would probably be better to just
-         * jump to the end of the loop but we don't have access
-         * to that right now.
-         */
-        BREAKING_LOOP,
 
+public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Interpreter.Completion> {
+    /**
+     * How a statement finished running.
+     * Returns and breaks are passed back up through the statements running them
+     * instead of unwinding the stack with an exception.
+     */
+    enum Completion {
+        NORMAL,
         /**
-         * Normal everyday execution
+         * A return statement ran, the value is in returnValue.
          */
-        REGULAR_EXECUTION,
+        RETURN,
+        BREAK,
+        CONTINUE,
         ;
     }
 
     private final LoxGlobal lox;
-    private State state = State.REGULAR_EXECUTION;
+
+    /**
+     * The value of the last return statement, until the function call picks it up.
+     */
+    private Object returnValue = null;
+
+    /**
+     * A call in tail position the function we're returning from makes
+     * once its body is done, see LoxFunction.call.
+     */
+    LoxFunction tailCallee = null;
+    Object[] tailArguments = null;
+    /**
+     * Set when the tail call invokes a method that wasn't bound, see invoke.
+     */
+    LoxInstance tailReceiver = null;
 
     /**
      * Global environment everyone has access to.
      */
-    final Environment globals = new Environment();
+    final GlobalEnvironment globals = new GlobalEnvironment();
 
     /**
-     * The current environment the interpreter is interpreting.
+     * The current local environment the interpreter is interpreting.
+     * Null while running top level code, where everything is a global.
      */
-    private Environment environment = globals;
+    private Environment environment = null;
 
     /**
-     * Map of known local variables by depth.
-     * These refer to the exact Expr token in our AST.
-     * This must NOT be done by equals but instead refer
-     * to each token uniquely!
+     * If set, nodes specialize themselves on the operand types they see (see Specialization).
      */
-    private final Map<Expr, Integer> locals = new HashMap<>();
+    boolean specialize = false;
 
-    public Interpreter(LoxGlobal lox) {
-        this.lox = lox;
+    /**
+     * If set, functions are compiled to JVM bytecode when possible, see JvmCompiler.
+     */
+    boolean compileFunctions = false;
 
-        globals.define("clock", new LoxCallable() {
-            @Override
-            public int arity() {
-                return 0;
-            }
+    /**
+     * Number of function declarations the JvmCompiler compiled, and ones it couldn't that run on the Interpreter.
+     */
+    int compiledFunctions = 0;
+    int uncompiledFunctions = 0;
 
-            @Override
-            public Object call(Interpreter interpreter, List<Object> arguments) {
-                return (double) System.currentTimeMillis() / 1000.0;
-            }
+    public Interpreter(LoxGlobal lox) {
+        this.lox = lox;
 
-            @Override
-            public String toString() {
-                return "<native fn>";
-            }
-        });
+        globals.define("clock", LoxNatives.CLOCK);
     }
 
     void interpret(List<Stmt> statements) {
@@ -80,119 +82,200 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     }
 
     @Override
-    public Void visitBreakStmt(Stmt.Break stmt) {
-        if (state != State.IN_LOOP) {
-            throw new RuntimeError(stmt.token, "Break occurred outside loop");
-        }
-        state = State.BREAKING_LOOP;
-        return null;
+    public Completion visitBreakStmt(Stmt.Break stmt) {
+        // The Resolver makes sure we're in a loop
+        return Completion.BREAK;
     }
 
     @Override
-    public Void visitWhileStmt(Stmt.While stmt) {
-        while (isTruthy(evaluate(stmt.condition))) {
-            // We only consider ourselves in the loop when we're actually
-            // inside the loop body. Not in the condition.
-            state = State.IN_LOOP;
-            execute(stmt.body);
-            if (state == State.BREAKING_LOOP) {
-                state = State.REGULAR_EXECUTION;
-                return null;
+    public Completion visitContinueStmt(Stmt.Continue stmt) {
+        return Completion.CONTINUE;
+    }
+
+    @Override
+    public Completion visitWhileStmt(Stmt.While stmt) {
+        while (evaluateBoolean(stmt.condition)) {
+            var completion = execute(stmt.body);
+            if (completion == Completion.BREAK) {
+                break;
+            } else if (completion == Completion.RETURN) {
+                return completion;
+            }
+
+            // Finishing the body and continuing both end up here
+            if (stmt.increment != null) {
+                evaluate(stmt.increment);
             }
-            state = State.REGULAR_EXECUTION;
         }
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitIfStmt(Stmt.If stmt) {
-        if (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.thenBranch);
+    public Completion visitIfStmt(Stmt.If stmt) {
+        if (evaluateBoolean(stmt.condition)) {
+            return execute(stmt.thenBranch);
         } else if (stmt.elseBranch != null) {
-            execute(stmt.elseBranch);
+            return execute(stmt.elseBranch);
         }
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitFunctionStmt(Stmt.Function stmt) {
-        var function = new LoxFunction(stmt, environment, false);
-        environment.define(stmt.name.lexeme, function);
-        return null;
+    public Completion visitFunctionStmt(Stmt.Function stmt) {
+        compile(stmt, false);
+
+        // Define the variable first, the function may capture itself
+        define(stmt.name, stmt.slot, stmt.boxed, Environment.VARIABLE_NOT_INITIALIZED);
+        var function = new LoxFunction(stmt, capture(stmt), false);
+        assignDeclaration(stmt.name, stmt.slot, stmt.boxed, function);
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
-        return null;
+    public Completion visitBlockStmt(Stmt.Block stmt) {
+        if (stmt.needsEnvironment) {
+            return executeBlock(stmt.statements, new Environment(stmt.environmentSize, Environment.NO_UPVALUES));
+        }
+
+        // The Resolver put our variables in the current function's environment, no need for a new one
+        return execute(stmt.statements);
     }
 
     @Override
-    public Void visitClassStmt(Stmt.Class stmt) {
-        environment.define(stmt.name.lexeme, null);
+    public Completion visitClassStmt(Stmt.Class stmt) {
+        // Define the variable first, methods may capture the class
+        define(stmt.name, stmt.slot, stmt.boxed, Environment.VARIABLE_NOT_INITIALIZED);
 
         var methods = new HashMap<String, LoxFunction>();
         for (var method : stmt.methods) {
-            var function = new LoxFunction(method, environment, method.name.lexeme.equals("init"));
+            compile(method, true);
+            var function = new LoxFunction(method, capture(method), method.name.lexeme.equals("init"));
             methods.put(method.name.lexeme, function);
         }
         var klass = new LoxClass(stmt.name.lexeme, methods);
 
-        environment.assign(stmt.name, klass);
-        return null;
+        assignDeclaration(stmt.name, stmt.slot, stmt.boxed, klass);
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitExpressionStmt(Stmt.Expression stmt) {
+    public Completion visitExpressionStmt(Stmt.Expression stmt) {
         evaluate(stmt.expression);
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitPrintStmt(Stmt.Print stmt) {
-        var value = evaluate(stmt.expression);
+    public Completion visitPrintStmt(Stmt.Print stmt) {
+        print(evaluate(stmt.expression));
+        return Completion.NORMAL;
+    }
+
+    void print(Object value) {
         lox.logOut(stringify(value));
-        return null;
     }
 
     @Override
-    public Void visitReturnStmt(Stmt.Return stmt) {
+    public Completion visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.tailCall) {
+            return tailCall((Expr.Call) stmt.value);
+        }
+
         Object value = null;
         if (stmt.value != null) {
             value = evaluate(stmt.value);
         }
 
-        // This could probably be implemented the same way as the state
-        // tracking for break statements... but I'll follow the book
-        // for this one.
-        throw new Return(value);
+        returnValue = value;
+        return Completion.RETURN;
+    }
+
+    private Completion tailCall(Expr.Call expr) {
+        if (expr.callee instanceof Expr.Get get) {
+            returnValue = invoke(expr, get, true);
+            return Completion.RETURN;
+        }
+
+        var callee = evaluate(expr.callee);
+        var args = evaluateArguments(expr.arguments);
+        returnValue = tailCall(callee, args, expr.paren);
+        return Completion.RETURN;
+    }
+
+    /**
+     * Runs the body the Inliner copied into the call, once we know the callee is still the function it came from.
+     * The arguments go straight into the slots it reserved for them in our environment.
+     */
+    private Object callInlined(Expr.Call expr) {
+        for (var i = 0; i < expr.arguments.size(); i++) {
+            environment.define(expr.inlinedSlot + i, false, evaluate(expr.arguments.get(i)));
+        }
+        return evaluate(expr.inlinedBody);
+    }
+
+    /**
+     * Makes a call in tail position, returning what the function should return.
+     * Calls to lox functions are left to the function call we're returning from, so the stack doesn't grow.
+     */
+    Object tailCall(Object callee, Object[] args, Token paren) {
+        if (callee instanceof LoxFunction function && args.length == function.arity()) {
+            tailCallee = function;
+            tailArguments = args;
+            return null;
+        }
+        return call(callee, args, paren);
     }
 
     @Override
-    public Void visitVarStmt(Stmt.Var stmt) {
+    public Completion visitVarStmt(Stmt.Var stmt) {
+        var value = Environment.VARIABLE_NOT_INITIALIZED;
         if (stmt.initializer != null) {
-            var value = evaluate(stmt.initializer);
-            environment.define(stmt.name.lexeme, value);
-        } else {
-            environment.define(stmt.name.lexeme);
+            value = evaluate(stmt.initializer);
         }
-        return null;
+        define(stmt.name, stmt.slot, stmt.boxed, value);
+        return Completion.NORMAL;
     }
 
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
         var value = evaluate(expr.value);
-        var distance = locals.get(expr);
-        if (distance != null) {
-            environment.assignAt(distance, expr.type, value);
+        if (expr.slot != -1) {
+            environment.assign(expr.slot, expr.boxed, value);
+        } else if (expr.upvalue != -1) {
+            environment.assignUpvalue(expr.upvalue, value);
         } else {
-            globals.assign(expr.type, value);
+            // Not a local? Assume we're globals, and remember the cell for next time
+            var global = expr.global;
+            if (global == null) {
+                global = globals.cell(expr.type.lexeme);
+                expr.global = global;
+            }
+            global.assign(expr.type, value);
         }
         return value;
     }
 
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
+        switch (expr.operator.type) {
+            case GREATER, GREATER_EQUAL, LESS, LESS_EQUAL -> {
+                return compare(expr);
+            }
+            case MINUS, SLASH, STAR -> {
+                return evaluateDouble(expr);
+            }
+        }
+
+        if (expr.operator.type == TokenType.PLUS) {
+            if (isNumeric(expr)) {
+                return evaluateDouble(expr);
+            } else if (inferredType(expr.left) == InferredType.STRING) {
+                var left = (String) evaluate(expr.left);
+                return left + stringify(evaluate(expr.right));
+            } else if (specialize) {
+                return specializedAdd(expr);
+            }
+        }
+
         var left = evaluate(expr.left);
         var right = evaluate(expr.right);
 
@@ -203,107 +286,186 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             case EQUAL_EQUAL -> {
                 return isEqual(left, right);
             }
-            case GREATER -> {
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left > (double) right;
-            }
-            case GREATER_EQUAL -> {
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left >= (double) right;
-            }
-            case LESS -> {
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left < (double) right;
-            }
-            case LESS_EQUAL -> {
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left <= (double) right;
-            }
-            case MINUS -> {
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left - (double) right;
+            case PLUS -> {
+                return add(expr.operator, left, right);
             }
-            case SLASH -> {
-                checkNumberOperands(expr.operator, left, right);
-                if ((double) right == 0.0) {
-                    throw new RuntimeError(expr.operator, "Division by zero");
+        }
+
+        // unreachable
+        return null;
+    }
+
+    static Object add(Token operator, Object left, Object right) {
+        // If both are doubles we do math
+        // Otherwise if either of the two are strings we stringify the other and concat
+        if (left instanceof Double && right instanceof Double) {
+            return (double) left + (double) right;
+        } else if (left instanceof String) {
+            return left + stringify(right);
+        } else if (right instanceof String) {
+            return stringify(left) + right;
+        }
+
+        throw new RuntimeError(
+            operator,
+            "Operands must be either be two numbers or one of the two operands a string."
+        );
+    }
+
+    /**
+     * Addition that only checks for the operand types this node has seen before.
+     */
+    private Object specializedAdd(Expr.Binary expr) {
+        var left = evaluate(expr.left);
+        var right = evaluate(expr.right);
+
+        switch (expr.specialization) {
+            case NUMBER -> {
+                if (left instanceof Double l && right instanceof Double r) {
+                    return l + r;
                 }
-                return (double) left / (double) right;
             }
-            case STAR -> {
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left * (double) right;
+            case STRING -> {
+                if (left instanceof String l) {
+                    return l + stringify(right);
+                }
             }
-            case PLUS -> {
-                // If both are doubles we do math
-                // Otherwise if either of the two are strings we stringify the other and concat
+            case UNINITIALIZED -> {
                 if (left instanceof Double && right instanceof Double) {
-                    return (double) left + (double) right;
+                    expr.specialization = Specialization.NUMBER;
                 } else if (left instanceof String) {
-                    return left + stringify(right);
-                } else if (right instanceof String) {
-                    return stringify(left) + right;
+                    expr.specialization = Specialization.STRING;
+                } else {
+                    expr.specialization = Specialization.GENERIC;
                 }
-
-                throw new RuntimeError(
-                    expr.operator,
-                    "Operands must be either be two numbers or one of the two operands a string."
-                );
+                return add(expr.operator, left, right);
+            }
+            case GENERIC -> {
+                return add(expr.operator, left, right);
             }
         }
 
-        // unreachable
-        return null;
+        // Our guard failed, so we've seen more than one kind of operand. Stay generic from now on.
+        expr.specialization = Specialization.GENERIC;
+        return add(expr.operator, left, right);
     }
 
     @Override
     public Object visitCallExpr(Expr.Call expr) {
+        if (expr.callee instanceof Expr.Get get) {
+            return invoke(expr, get, false);
+        }
+
         var callee = evaluate(expr.callee);
+        if (expr.inlined != null && callee instanceof LoxFunction function && function.declaration() == expr.inlined) {
+            return callInlined(expr);
+        }
+
+        var args = evaluateArguments(expr.arguments);
+        return call(callee, args, expr.paren);
+    }
 
-        var args = new ArrayList<Object>();
-        for (var argument : expr.arguments) {
-            args.add(evaluate(argument));
+    private Object[] evaluateArguments(List<Expr> arguments) {
+        var args = new Object[arguments.size()];
+        for (var i = 0; i < args.length; i++) {
+            args[i] = evaluate(arguments.get(i));
         }
+        return args;
+    }
 
+    Object call(Object callee, Object[] args, Token paren) {
         if (!(callee instanceof LoxCallable function)) {
-            throw new RuntimeError(expr.paren, "Can only call functions and classes.");
+            throw new RuntimeError(paren, "Can only call functions and classes.");
+        }
+
+        checkArity(function, args, paren);
+        try {
+            return function.call(this, args);
+        } catch (StackOverflowError error) {
+            // Report running out of java stack like any other error instead of crashing
+            throw new RuntimeError(paren, "Stack overflow.");
         }
+    }
 
-        if (args.size() != function.arity()) {
+    private static void checkArity(LoxCallable function, Object[] args, Token paren) {
+        if (args.length != function.arity()) {
             throw new RuntimeError(
-                expr.paren,
-                "Expected " + function.arity() + " arguments but got " + args.size() + "."
+                paren,
+                "Expected " + function.arity() + " arguments but got " + args.length + "."
             );
         }
-        return function.call(this, args);
+    }
+
+    /**
+     * Calls a method straight on the instance it's read from, like "object.method()".
+     * The bound method getting the property would make can't be seen by anything, so it's never made.
+     * Properties that turn out to be fields are called like any other value.
+     */
+    private Object invoke(Expr.Call expr, Expr.Get get, boolean tailCall) {
+        var object = evaluate(get.object);
+        if (!(object instanceof LoxInstance instance)) {
+            throw new RuntimeError(get.name, "Only instances have properties.");
+        }
+
+        var entry = get.cache.lookup(instance, get.name);
+        var method = get.cache.method(entry);
+        if (method == null) {
+            var callee = get.cache.field(instance, entry);
+            var args = evaluateArguments(expr.arguments);
+            return tailCall ? tailCall(callee, args, expr.paren) : call(callee, args, expr.paren);
+        }
+
+        var args = evaluateArguments(expr.arguments);
+        checkArity(method, args, expr.paren);
+        if (tailCall) {
+            tailCallee = method;
+            tailArguments = args;
+            tailReceiver = instance;
+            return null;
+        }
+        try {
+            return method.invoke(this, instance, args);
+        } catch (StackOverflowError error) {
+            throw new RuntimeError(expr.paren, "Stack overflow.");
+        }
     }
 
     @Override
     public Object visitGetExpr(Expr.Get expr) {
-        var object = evaluate(expr.object);
+        return getProperty(evaluate(expr.object), expr.name, expr.cache);
+    }
+
+    static Object getProperty(Object object, Token name, PropertyCache cache) {
         if (object instanceof LoxInstance obj) {
-            return obj.get(expr.name);
+            return cache.get(obj, name);
         }
 
-        throw new RuntimeError(expr.name, "Only instances have properties.");
+        throw new RuntimeError(name, "Only instances have properties.");
     }
 
     @Override
     public Object visitSetExpr(Expr.Set expr) {
-        var object = evaluate(expr.object);
+        var object = instanceForField(evaluate(expr.object), expr.name);
+        var value = evaluate(expr.value);
+        expr.cache.set(object, expr.name, value);
+        return null;
+    }
 
-        if (!(object instanceof LoxInstance)) {
-            throw new RuntimeError(expr.name, "Only instances have fields.");
+    static LoxInstance instanceForField(Object object, Token name) {
+        if (object instanceof LoxInstance instance) {
+            return instance;
         }
 
-        var value = evaluate(expr.value);
-        ((LoxInstance)object).set(expr.name, value);
-        return null;
+        throw new RuntimeError(name, "Only instances have fields.");
     }
 
     @Override
     public Object visitThisExpr(Expr.This expr) {
-        return lookupVariable(expr.keyword, expr);
+        // "this" is always a local or captured, the Resolver reports any use outside of a class
+        if (expr.slot != -1) {
+            return environment.get(expr.slot, expr.boxed, expr.keyword);
+        }
+        return environment.getUpvalue(expr.upvalue, expr.keyword);
     }
 
     @Override
@@ -318,23 +480,31 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitUnaryExpr(Expr.Unary expr) {
-        var right = evaluate(expr.right);
-        switch (expr.operator.type) {
-            case MINUS -> {
-                return -(double) right;
-            }
-            case BANG -> {
-                return !isTruthy(right);
-            }
+        if (expr.operator.type == TokenType.MINUS) {
+            return evaluateDouble(expr);
         }
+        return !evaluateBoolean(expr.right);
+    }
 
-        // unreachable
-        return null;
+    /**
+     * Short circuits, returning whichever operand decided the result instead of a boolean.
+     */
+    @Override
+    public Object visitLogicalExpr(Expr.Logical expr) {
+        var left = evaluate(expr.left);
+        if (expr.operator.type == TokenType.OR) {
+            if (isTruthy(left)) {
+                return left;
+            }
+        } else if (!isTruthy(left)) {
+            return left;
+        }
+        return evaluate(expr.right);
     }
 
     @Override
     public Object visitTernaryExpr(Expr.Ternary expr) {
-        if (isTruthy(evaluate(expr.check))) {
+        if (evaluateBoolean(expr.check)) {
             return evaluate(expr.left);
         } else {
             return evaluate(expr.right);
@@ -343,7 +513,19 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-        return lookupVariable(expr.name, expr);
+        if (expr.slot != -1) {
+            return environment.get(expr.slot, expr.boxed, expr.name);
+        } else if (expr.upvalue != -1) {
+            return environment.getUpvalue(expr.upvalue, expr.name);
+        }
+
+        // Not a local? Assume we're globals, and remember the cell for next time
+        var global = expr.global;
+        if (global == null) {
+            global = globals.cell(expr.name.lexeme);
+            expr.global = global;
+        }
+        return global.get(expr.name);
     }
 
     private void checkNumberOperand(Token operator, Object operand) {
@@ -353,14 +535,77 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         }
     }
 
-    private void checkNumberOperands(Token operator, Object left, Object right) {
-        if (left instanceof Double && right instanceof Double) {
+    /**
+     * Evaluates an operand of a binary numeric operator.
+     * If the operand isn't a number the rest of the expression (the right operand, if any)
+     * is still evaluated before reporting the error, the same as if both were evaluated up front.
+     */
+    private double numberOperand(Expr operand, Token operator, Expr rest) {
+        if (isNumeric(operand)) {
+            return evaluateDouble(operand);
+        }
+
+        Object value;
+        if (operand instanceof Expr.Binary binary && binary.specialization == Specialization.NUMBER) {
+            // An addition that has only seen numbers, we can skip boxing the sum as long as that holds
+            var left = evaluate(binary.left);
+            var right = evaluate(binary.right);
+            if (left instanceof Double l && right instanceof Double r) {
+                return l + r;
+            }
+            binary.specialization = Specialization.GENERIC;
+            value = add(binary.operator, left, right);
         } else {
-            throw new RuntimeError(operator, "Operands must be a numbers.");
+            value = evaluate(operand);
+        }
+        if (value instanceof Double number) {
+            return number;
+        }
+        if (rest != null) {
+            evaluate(rest);
+        }
+        throw new RuntimeError(operator, "Operands must be a numbers.");
+    }
+
+    /**
+     * Determine if an expression always produces a number (or fails trying),
+     * which means it can be evaluated with evaluateDouble.
+     * Beyond the operators that only produce numbers, this uses what the TypeInferrer proved.
+     */
+    static boolean isNumeric(Expr expr) {
+        if (expr instanceof Expr.Literal literal) {
+            return literal.value instanceof Double;
+        } else if (expr instanceof Expr.Grouping grouping) {
+            return isNumeric(grouping.expression);
+        } else if (expr instanceof Expr.Unary unary) {
+            return unary.operator.type == TokenType.MINUS;
+        } else if (expr instanceof Expr.Binary binary) {
+            return switch (binary.operator.type) {
+                case MINUS, SLASH, STAR -> true;
+                case PLUS -> isNumeric(binary.left) && isNumeric(binary.right);
+                default -> false;
+            };
+        }
+        return inferredType(expr) == InferredType.NUMBER;
+    }
+
+    /**
+     * The type the TypeInferrer annotated the expression with, if it's one it annotates.
+     */
+    static InferredType inferredType(Expr expr) {
+        if (expr instanceof Expr.Variable variable) {
+            return variable.inferredType;
+        } else if (expr instanceof Expr.Assign assign) {
+            return assign.inferredType;
+        } else if (expr instanceof Expr.Ternary ternary) {
+            return ternary.inferredType;
+        } else if (expr instanceof Expr.Logical logical) {
+            return logical.inferredType;
         }
+        return InferredType.UNKNOWN;
     }
 
-    private boolean isEqual(Object left, Object right) {
+    static boolean isEqual(Object left, Object right) {
         if (left == null && right == null) {
             return true;
         } else if (left == null) {
@@ -375,7 +620,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
      * Falsy values are null and `false`.
      * Everything else is true.
      */
-    private boolean isTruthy(Object value) {
+    static boolean isTruthy(Object value) {
         if (value == null) {
             return false;
         } else if (value instanceof Boolean) {
@@ -389,41 +634,174 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return expr.accept(this);
     }
 
-    private void execute(Stmt statement) {
-        if (state == State.BREAKING_LOOP) {
-            return;
+    /**
+     * Evaluates a numeric expression (see isNumeric) without boxing, so nested
+     * arithmetic only allocates once the result is stored somewhere.
+     */
+    private double evaluateDouble(Expr expr) {
+        if (expr instanceof Expr.Binary binary) {
+            var left = numberOperand(binary.left, binary.operator, binary.right);
+            var right = numberOperand(binary.right, binary.operator, null);
+            switch (binary.operator.type) {
+                case MINUS -> {
+                    return left - right;
+                }
+                case SLASH -> {
+                    if (right == 0.0) {
+                        throw new RuntimeError(binary.operator, "Division by zero");
+                    }
+                    return left / right;
+                }
+                case STAR -> {
+                    return left * right;
+                }
+                default -> {
+                    // Only PLUS with two numeric operands gets here
+                    return left + right;
+                }
+            }
+        } else if (expr instanceof Expr.Unary unary) {
+            if (isNumeric(unary.right)) {
+                return -evaluateDouble(unary.right);
+            }
+            var right = evaluate(unary.right);
+            checkNumberOperand(unary.operator, right);
+            return -(double) right;
+        } else if (expr instanceof Expr.Grouping grouping) {
+            return evaluateDouble(grouping.expression);
+        } else if (expr instanceof Expr.Literal literal) {
+            return (double) literal.value;
+        }
+        // The TypeInferrer proved this is a number, no need to check
+        return (double) evaluate(expr);
+    }
+
+    /**
+     * Evaluates an expression for its truthiness.
+     * Comparisons, negations and logical operators are done without boxing anything in between.
+     */
+    private boolean evaluateBoolean(Expr expr) {
+        if (expr instanceof Expr.Binary binary) {
+            switch (binary.operator.type) {
+                case GREATER, GREATER_EQUAL, LESS, LESS_EQUAL -> {
+                    return compare(binary);
+                }
+            }
+        } else if (expr instanceof Expr.Unary unary && unary.operator.type == TokenType.BANG) {
+            return !evaluateBoolean(unary.right);
+        } else if (expr instanceof Expr.Logical logical) {
+            // Only the truthiness of the deciding operand matters here, not the operand itself
+            if (logical.operator.type == TokenType.OR) {
+                return evaluateBoolean(logical.left) || evaluateBoolean(logical.right);
+            }
+            return evaluateBoolean(logical.left) && evaluateBoolean(logical.right);
+        } else if (expr instanceof Expr.Grouping grouping) {
+            return evaluateBoolean(grouping.expression);
+        }
+        return isTruthy(evaluate(expr));
+    }
+
+    private boolean compare(Expr.Binary expr) {
+        var left = numberOperand(expr.left, expr.operator, expr.right);
+        var right = numberOperand(expr.right, expr.operator, null);
+        return switch (expr.operator.type) {
+            case GREATER -> left > right;
+            case GREATER_EQUAL -> left >= right;
+            case LESS -> left < right;
+            default -> left <= right;
+        };
+    }
+
+    private Completion execute(Stmt statement) {
+        return statement.accept(this);
+    }
+
+    /**
+     * Runs statements until one of them returns or breaks.
+     */
+    private Completion execute(List<Stmt> statements) {
+        for (var statement : statements) {
+            var completion = execute(statement);
+            if (completion != Completion.NORMAL) {
+                return completion;
+            }
         }
-        statement.accept(this);
+        return Completion.NORMAL;
     }
 
-    void executeBlock(List<Stmt> statements, Environment newEnv) {
+    Completion executeBlock(List<Stmt> statements, Environment newEnv) {
         // Store our current env so we can push it back after running all statements in this block
         var previousEnv = this.environment;
         try {
             this.environment = newEnv;
-            for (var statement : statements) {
-                execute(statement);
-            }
+            return execute(statements);
         } finally {
             this.environment = previousEnv;
         }
     }
 
-    void resolve(Expr expr, int depth) {
-        locals.put(expr, depth);
+    /**
+     * Runs the body of a function call, returning the value it returned (or nil).
+     */
+    Object executeFunction(List<Stmt> body, Environment newEnv) {
+        if (executeBlock(body, newEnv) == Completion.RETURN) {
+            var value = returnValue;
+            returnValue = null;
+            return value;
+        }
+        return null;
     }
 
-    private Object lookupVariable(Token name, Expr expr) {
-        var distance = locals.get(expr);
-        if (distance != null) {
-            return environment.getAt(distance, name.lexeme);
+    /**
+     * Defines a new variable in the current scope.
+     * Locals go in the slot the Resolver assigned them, anything without one is a global.
+     */
+    private void define(Token name, int slot, boolean boxed, Object value) {
+        if (slot == -1) {
+            globals.define(name.lexeme, value);
         } else {
-            // No depth? Assume we're globals
-            return globals.get(name);
+            environment.define(slot, boxed, value);
+        }
+    }
+
+    /**
+     * Assigns the value of a declaration that was already defined (to let closures capture it).
+     */
+    private void assignDeclaration(Token name, int slot, boolean boxed, Object value) {
+        if (slot == -1) {
+            globals.define(name.lexeme, value);
+        } else {
+            environment.assign(slot, boxed, value);
+        }
+    }
+
+    /**
+     * Compiles a function to JVM bytecode the first time we declare it, if enabled.
+     * LoxFunction runs the compiled version whenever there is one.
+     */
+    private void compile(Stmt.Function function, boolean isMethod) {
+        if (compileFunctions && !function.compileAttempted) {
+            function.compileAttempted = true;
+            function.compiled = new JvmCompiler(globals).compile(function, isMethod);
+            if (function.compiled != null) {
+                compiledFunctions++;
+            } else {
+                uncompiledFunctions++;
+            }
+        }
+    }
+
+    /**
+     * Collects the variables a new function captures from the current environment.
+     */
+    private Environment.Box[] capture(Stmt.Function function) {
+        if (function.captures.isEmpty()) {
+            return Environment.NO_UPVALUES;
         }
+        return environment.capture(function.captures);
     }
 
-    private String stringify(Object object) {
+    static String stringify(Object object) {
         if (object == null) {
             return "nil";
         } else if (object instanceof Double) {
@@ -0,0 +1,667 @@
+package com.camd67.jlox;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Stack;
+
+import static com.camd67.jlox.ClassFileWriter.*;
+
+/**
+ * Compiles the body of a single resolved lox function into a JVM class implementing CompiledFunction,
+ * loaded as a hidden class so HotSpot can JIT it like any other java code.
+ * Locals live in JVM local variables and numbers stay unboxed doubles inside expressions.
+ * Everything else (calls, properties, globals) goes through the same code the Interpreter uses.
+ * Functions that create closures, capture variables, or declare functions and classes aren't
+ * supported, those keep running on the Interpreter.
+ */
+class JvmCompiler implements Expr.Visitor<JvmCompiler.Type>, Stmt.Visitor<Void> {
+    /**
+     * What an expression left on the operand stack.
+     */
+    enum Type {
+        OBJECT,
+        DOUBLE,
+        BOOLEAN,
+    }
+
+    /**
+     * Thrown when we hit something we can't compile, the function is left to the Interpreter.
+     */
+    private static class Unsupported extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Unsupported(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    private static final String OBJECT = "java/lang/Object";
+    private static final String INTERPRETER = "com/camd67/jlox/Interpreter";
+    private static final String TOKEN = "com/camd67/jlox/Token";
+    private static final String CELL = "com/camd67/jlox/GlobalEnvironment$Cell";
+    private static final String PROPERTY_CACHE = "com/camd67/jlox/PropertyCache";
+    private static final String ENVIRONMENT = "com/camd67/jlox/Environment";
+    private static final String COMPILER = "com/camd67/jlox/JvmCompiler";
+    private static final String CALL_DESCRIPTOR =
+        "(Lcom/camd67/jlox/Interpreter;Lcom/camd67/jlox/LoxInstance;[Ljava/lang/Object;)Ljava/lang/Object;";
+
+    /**
+     * Local variable slots of the call method, lox slots come after these.
+     */
+    private static final int THIS_LOCAL = 0;
+    private static final int INTERPRETER_LOCAL = 1;
+    private static final int RECEIVER_LOCAL = 2;
+    private static final int ARGUMENTS_LOCAL = 3;
+    private static final int FIRST_SLOT_LOCAL = 4;
+
+    private final GlobalEnvironment globals;
+
+    private String className;
+    private ClassFileWriter.MethodWriter code;
+
+    /**
+     * Objects the generated code needs (tokens for errors, global cells), handed to the class when it's created.
+     */
+    private final List<Object> constants = new ArrayList<>();
+
+    /**
+     * Slots of variables declared without an initializer, the only ones that need checking when read.
+     */
+    private final Set<Integer> uninitializedSlots = new HashSet<>();
+
+    /**
+     * Where break and continue jump to, for each loop we're in.
+     */
+    private record Loop(ClassFileWriter.Label increment, ClassFileWriter.Label end) {
+    }
+
+    private final Stack<Loop> loops = new Stack<>();
+
+    JvmCompiler(GlobalEnvironment globals) {
+        this.globals = globals;
+    }
+
+    /**
+     * Compiles a function, returning null if it uses something we can't compile.
+     */
+    CompiledFunction compile(Stmt.Function function, boolean isMethod) {
+        if (!function.captures.isEmpty()) {
+            return null;
+        }
+
+        byte[] bytes;
+        try {
+            bytes = generate(function, isMethod);
+        } catch (Unsupported unsupported) {
+            return null;
+        }
+
+        try {
+            var lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+            var constructor = lookup.findConstructor(
+                lookup.lookupClass(),
+                MethodType.methodType(void.class, Object[].class)
+            );
+            return (CompiledFunction) constructor.invoke(constants.toArray());
+        } catch (Throwable e) {
+            throw new IllegalStateException("Failed to load compiled function " + function.name.lexeme, e);
+        }
+    }
+
+    private byte[] generate(Stmt.Function function, boolean isMethod) {
+        className = "com/camd67/jlox/CompiledLox_" + function.name.lexeme;
+        var classFile = new ClassFileWriter(className, OBJECT, "com/camd67/jlox/CompiledFunction");
+        classFile.field(ACC_PRIVATE | ACC_FINAL, "constants", "[Ljava/lang/Object;");
+
+        var constructor = classFile.method(0, "<init>", "([Ljava/lang/Object;)V", 2);
+        constructor.local(ALOAD, THIS_LOCAL);
+        constructor.invoke(INVOKESPECIAL, OBJECT, "<init>", "()V");
+        constructor.local(ALOAD, THIS_LOCAL);
+        constructor.local(ALOAD, 1);
+        constructor.field(PUTFIELD, className, "constants", "[Ljava/lang/Object;");
+        constructor.op(RETURN, 0);
+        constructor.end();
+
+        code = classFile.method(ACC_PUBLIC, "call", CALL_DESCRIPTOR, FIRST_SLOT_LOCAL + function.environmentSize);
+
+        // Move "this" and the parameters into their slots
+        var firstParameter = 0;
+        if (isMethod) {
+            code.local(ALOAD, RECEIVER_LOCAL);
+            code.local(ASTORE, FIRST_SLOT_LOCAL);
+            firstParameter = 1;
+        }
+        for (var i = 0; i < function.params.size(); i++) {
+            code.local(ALOAD, ARGUMENTS_LOCAL);
+            code.pushInt(i);
+            code.op(AALOAD, -1);
+            code.local(ASTORE, FIRST_SLOT_LOCAL + firstParameter + i);
+        }
+
+        for (var statement : function.body) {
+            statement.accept(this);
+        }
+        code.op(ACONST_NULL, 1);
+        code.op(ARETURN, -1);
+        code.end();
+
+        return classFile.toByteArray();
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+        // The Resolver makes sure we're in a loop
+        code.jump(GOTO, loops.peek().end());
+        return null;
+    }
+
+    @Override
+    public Void visitContinueStmt(Stmt.Continue stmt) {
+        code.jump(GOTO, loops.peek().increment());
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        var start = new ClassFileWriter.Label();
+        var loop = new Loop(new ClassFileWriter.Label(), new ClassFileWriter.Label());
+        code.place(start);
+        condition(stmt.condition);
+        code.jump(IFEQ, loop.end());
+
+        loops.push(loop);
+        stmt.body.accept(this);
+        loops.pop();
+
+        code.place(loop.increment());
+        if (stmt.increment != null) {
+            discard(stmt.increment.accept(this));
+        }
+        code.jump(GOTO, start);
+        code.place(loop.end());
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        var elseBranch = new ClassFileWriter.Label();
+        condition(stmt.condition);
+        code.jump(IFEQ, elseBranch);
+        stmt.thenBranch.accept(this);
+        if (stmt.elseBranch == null) {
+            code.place(elseBranch);
+        } else {
+            var end = new ClassFileWriter.Label();
+            code.jump(GOTO, end);
+            code.place(elseBranch);
+            stmt.elseBranch.accept(this);
+            code.place(end);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        throw new Unsupported("nested function");
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        // Blocks inside a function keep their variables in the function's slots
+        for (var statement : stmt.statements) {
+            statement.accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        throw new Unsupported("nested class");
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        discard(stmt.expression.accept(this));
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        code.local(ALOAD, INTERPRETER_LOCAL);
+        object(stmt.expression);
+        code.invoke(INVOKEVIRTUAL, INTERPRETER, "print", "(Ljava/lang/Object;)V");
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.tailCall) {
+            call((Expr.Call) stmt.value, "tailCall");
+        } else if (stmt.value != null) {
+            object(stmt.value);
+        } else {
+            code.op(ACONST_NULL, 1);
+        }
+        code.op(ARETURN, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.slot == -1 || stmt.boxed) {
+            throw new Unsupported("global or captured variable");
+        }
+
+        if (stmt.initializer != null) {
+            object(stmt.initializer);
+        } else {
+            code.field(GETSTATIC, ENVIRONMENT, "VARIABLE_NOT_INITIALIZED", "Ljava/lang/Object;");
+            uninitializedSlots.add(stmt.slot);
+        }
+        code.local(ASTORE, FIRST_SLOT_LOCAL + stmt.slot);
+        return null;
+    }
+
+    @Override
+    public Type visitAssignExpr(Expr.Assign expr) {
+        if (expr.slot != -1 && !expr.boxed) {
+            object(expr.value);
+            code.op(DUP, 1);
+            code.local(ASTORE, FIRST_SLOT_LOCAL + expr.slot);
+        } else if (expr.slot == -1 && expr.upvalue == -1) {
+            // Leaves a copy of the value under the cell for the assignment's result
+            constant(globals.cell(expr.type.lexeme), CELL);
+            object(expr.value);
+            code.op(DUP_X1, 1);
+            constant(expr.type, TOKEN);
+            code.op(SWAP, 0);
+            code.invoke(INVOKEVIRTUAL, CELL, "assign", "(Lcom/camd67/jlox/Token;Ljava/lang/Object;)V");
+        } else {
+            throw new Unsupported("captured variable");
+        }
+        return Type.OBJECT;
+    }
+
+    @Override
+    public Type visitBinaryExpr(Expr.Binary expr) {
+        switch (expr.operator.type) {
+            case MINUS, SLASH, STAR -> {
+                numberOperands(expr);
+                arithmetic(expr.operator);
+                return Type.DOUBLE;
+            }
+            case GREATER, GREATER_EQUAL, LESS, LESS_EQUAL -> {
+                numberOperands(expr);
+                compare(expr.operator);
+                return Type.BOOLEAN;
+            }
+            case PLUS -> {
+                if (Interpreter.isNumeric(expr)) {
+                    numberOperands(expr);
+                    code.op(DADD, -2);
+                    return Type.DOUBLE;
+                }
+                constant(expr.operator, TOKEN);
+                object(expr.left);
+                object(expr.right);
+                code.invoke(INVOKESTATIC, INTERPRETER, "add",
+                    "(Lcom/camd67/jlox/Token;Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;");
+                return Type.OBJECT;
+            }
+            default -> {
+                object(expr.left);
+                object(expr.right);
+                code.invoke(INVOKESTATIC, INTERPRETER, "isEqual", "(Ljava/lang/Object;Ljava/lang/Object;)Z");
+                if (expr.operator.type == TokenType.BANG_EQUAL) {
+                    not();
+                }
+                return Type.BOOLEAN;
+            }
+        }
+    }
+
+    @Override
+    public Type visitCallExpr(Expr.Call expr) {
+        call(expr, "call");
+        return Type.OBJECT;
+    }
+
+    /**
+     * Calls one of the Interpreter's methods taking a callee, its arguments and the paren token.
+     */
+    private void call(Expr.Call expr, String method) {
+        code.local(ALOAD, INTERPRETER_LOCAL);
+        object(expr.callee);
+
+        code.pushInt(expr.arguments.size());
+        code.type(ANEWARRAY, OBJECT);
+        for (var i = 0; i < expr.arguments.size(); i++) {
+            code.op(DUP, 1);
+            code.pushInt(i);
+            object(expr.arguments.get(i));
+            code.op(AASTORE, -3);
+        }
+
+        constant(expr.paren, TOKEN);
+        code.invoke(INVOKEVIRTUAL, INTERPRETER, method,
+            "(Ljava/lang/Object;[Ljava/lang/Object;Lcom/camd67/jlox/Token;)Ljava/lang/Object;");
+    }
+
+    @Override
+    public Type visitGetExpr(Expr.Get expr) {
+        object(expr.object);
+        constant(expr.name, TOKEN);
+        constant(expr.cache, PROPERTY_CACHE);
+        code.invoke(INVOKESTATIC, INTERPRETER, "getProperty",
+            "(Ljava/lang/Object;Lcom/camd67/jlox/Token;Lcom/camd67/jlox/PropertyCache;)Ljava/lang/Object;");
+        return Type.OBJECT;
+    }
+
+    @Override
+    public Type visitSetExpr(Expr.Set expr) {
+        constant(expr.cache, PROPERTY_CACHE);
+        object(expr.object);
+        constant(expr.name, TOKEN);
+        code.invoke(INVOKESTATIC, INTERPRETER, "instanceForField",
+            "(Ljava/lang/Object;Lcom/camd67/jlox/Token;)Lcom/camd67/jlox/LoxInstance;");
+        constant(expr.name, TOKEN);
+        object(expr.value);
+        code.invoke(INVOKEVIRTUAL, PROPERTY_CACHE, "set",
+            "(Lcom/camd67/jlox/LoxInstance;Lcom/camd67/jlox/Token;Ljava/lang/Object;)V");
+        // Setting a property evaluates to nil, like in the Interpreter
+        code.op(ACONST_NULL, 1);
+        return Type.OBJECT;
+    }
+
+    @Override
+    public Type visitThisExpr(Expr.This expr) {
+        if (expr.slot == -1 || expr.boxed) {
+            throw new Unsupported("captured this");
+        }
+        code.local(ALOAD, FIRST_SLOT_LOCAL + expr.slot);
+        return Type.OBJECT;
+    }
+
+    @Override
+    public Type visitGroupingExpr(Expr.Grouping expr) {
+        return expr.expression.accept(this);
+    }
+
+    @Override
+    public Type visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            code.op(ACONST_NULL, 1);
+        } else if (expr.value instanceof Boolean bool) {
+            code.pushInt(bool ? 1 : 0);
+            return Type.BOOLEAN;
+        } else if (expr.value instanceof Double number) {
+            code.pushDouble(number);
+            return Type.DOUBLE;
+        } else if (expr.value instanceof String string && string.length() <= MAX_STRING_CONSTANT) {
+            code.pushString(string);
+        } else {
+            constant(expr.value, OBJECT);
+        }
+        return Type.OBJECT;
+    }
+
+    @Override
+    public Type visitUnaryExpr(Expr.Unary expr) {
+        if (expr.operator.type == TokenType.BANG) {
+            condition(expr.right);
+            not();
+            return Type.BOOLEAN;
+        }
+
+        var type = expr.right.accept(this);
+        if (type != Type.DOUBLE) {
+            toObject(type);
+            constant(expr.operator, TOKEN);
+            code.invoke(INVOKESTATIC, COMPILER, "numberOperand", "(Ljava/lang/Object;Lcom/camd67/jlox/Token;)D");
+        }
+        code.op(DNEG, 0);
+        return Type.DOUBLE;
+    }
+
+    @Override
+    public Type visitLogicalExpr(Expr.Logical expr) {
+        var end = new ClassFileWriter.Label();
+        object(expr.left);
+        code.op(DUP, 1);
+        code.invoke(INVOKESTATIC, INTERPRETER, "isTruthy", "(Ljava/lang/Object;)Z");
+        code.jump(expr.operator.type == TokenType.OR ? IFNE : IFEQ, end);
+        code.op(POP, -1);
+        object(expr.right);
+        code.place(end);
+        return Type.OBJECT;
+    }
+
+    @Override
+    public Type visitTernaryExpr(Expr.Ternary expr) {
+        var elseBranch = new ClassFileWriter.Label();
+        var end = new ClassFileWriter.Label();
+        condition(expr.check);
+        code.jump(IFEQ, elseBranch);
+        var stack = code.stack();
+        object(expr.left);
+        code.jump(GOTO, end);
+        code.place(elseBranch);
+        code.setStack(stack);
+        object(expr.right);
+        code.place(end);
+        return Type.OBJECT;
+    }
+
+    @Override
+    public Type visitVariableExpr(Expr.Variable expr) {
+        if (expr.slot != -1 && !expr.boxed) {
+            code.local(ALOAD, FIRST_SLOT_LOCAL + expr.slot);
+            if (uninitializedSlots.contains(expr.slot)) {
+                constant(expr.name, TOKEN);
+                code.invoke(INVOKESTATIC, ENVIRONMENT, "checkInitialized",
+                    "(Ljava/lang/Object;Lcom/camd67/jlox/Token;)Ljava/lang/Object;");
+            }
+        } else if (expr.slot == -1 && expr.upvalue == -1) {
+            constant(globals.cell(expr.name.lexeme), CELL);
+            constant(expr.name, TOKEN);
+            code.invoke(INVOKEVIRTUAL, CELL, "get", "(Lcom/camd67/jlox/Token;)Ljava/lang/Object;");
+        } else {
+            throw new Unsupported("captured variable");
+        }
+        return Type.OBJECT;
+    }
+
+    /**
+     * Compiles an expression, boxing the result if it's a number or boolean.
+     */
+    private void object(Expr expr) {
+        toObject(expr.accept(this));
+    }
+
+    /**
+     * Compiles an expression for its truthiness, leaving an int on the stack.
+     */
+    private void condition(Expr expr) {
+        if (expr instanceof Expr.Logical logical) {
+            // Only truthiness matters here, so neither operand needs to be boxed
+            var isOr = logical.operator.type == TokenType.OR;
+            var shortCircuit = new ClassFileWriter.Label();
+            var end = new ClassFileWriter.Label();
+            condition(logical.left);
+            code.jump(isOr ? IFNE : IFEQ, shortCircuit);
+            var stack = code.stack();
+            condition(logical.right);
+            code.jump(GOTO, end);
+            code.place(shortCircuit);
+            code.setStack(stack);
+            code.pushInt(isOr ? 1 : 0);
+            code.place(end);
+            return;
+        }
+
+        var type = expr.accept(this);
+        if (type == Type.DOUBLE) {
+            // Numbers are always truthy
+            code.op(POP2, -2);
+            code.pushInt(1);
+        } else if (type == Type.OBJECT) {
+            code.invoke(INVOKESTATIC, INTERPRETER, "isTruthy", "(Ljava/lang/Object;)Z");
+        }
+    }
+
+    private void discard(Type type) {
+        if (type == Type.DOUBLE) {
+            code.op(POP2, -2);
+        } else {
+            code.op(POP, -1);
+        }
+    }
+
+    private void toObject(Type type) {
+        switch (type) {
+            case DOUBLE -> code.invoke(INVOKESTATIC, "java/lang/Double", "valueOf", "(D)Ljava/lang/Double;");
+            case BOOLEAN -> code.invoke(INVOKESTATIC, "java/lang/Boolean", "valueOf", "(Z)Ljava/lang/Boolean;");
+        }
+    }
+
+    /**
+     * Compiles both operands of a numeric operator, leaving two doubles on the stack.
+     * Operands that aren't known to be numbers are only checked once both are evaluated,
+     * the same as the Interpreter.
+     */
+    private void numberOperands(Expr.Binary expr) {
+        var left = expr.left.accept(this);
+        if (left == Type.BOOLEAN) {
+            toObject(left);
+            left = Type.OBJECT;
+        }
+        var right = expr.right.accept(this);
+        if (right == Type.BOOLEAN) {
+            toObject(right);
+            right = Type.OBJECT;
+        }
+
+        if (left == Type.OBJECT) {
+            // Set the right operand aside to get at the left one
+            var temporary = code.newLocal(right == Type.DOUBLE ? 2 : 1);
+            code.local(right == Type.DOUBLE ? DSTORE : ASTORE, temporary);
+            toNumber(expr.left, expr.operator);
+            code.local(right == Type.DOUBLE ? DLOAD : ALOAD, temporary);
+        }
+        if (right == Type.OBJECT) {
+            toNumber(expr.right, expr.operator);
+        }
+    }
+
+    private void toNumber(Expr operand, Token operator) {
+        if (Interpreter.inferredType(operand) == InferredType.NUMBER) {
+            // The TypeInferrer proved it's a number, so it only needs unboxing
+            code.type(CHECKCAST, "java/lang/Double");
+            code.invoke(INVOKEVIRTUAL, "java/lang/Double", "doubleValue", "()D");
+            return;
+        }
+        constant(operator, TOKEN);
+        code.invoke(INVOKESTATIC, COMPILER, "numberOperands", "(Ljava/lang/Object;Lcom/camd67/jlox/Token;)D");
+    }
+
+    private void arithmetic(Token operator) {
+        switch (operator.type) {
+            case MINUS -> code.op(DSUB, -2);
+            case STAR -> code.op(DMUL, -2);
+            default -> {
+                var nonZero = new ClassFileWriter.Label();
+                code.op(DUP2, 2);
+                code.op(DCONST_0, 2);
+                code.op(DCMPL, -3);
+                code.jump(IFNE, nonZero);
+                constant(operator, TOKEN);
+                code.invoke(INVOKESTATIC, COMPILER, "divisionByZero",
+                    "(Lcom/camd67/jlox/Token;)Lcom/camd67/jlox/RuntimeError;");
+                code.op(ATHROW, -1);
+                code.place(nonZero);
+                code.op(DDIV, -2);
+            }
+        }
+    }
+
+    /**
+     * Compares the two doubles on the stack, leaving 1 or 0.
+     * NaN compares false to everything, like java's own comparisons.
+     */
+    private void compare(Token operator) {
+        var isFalse = new ClassFileWriter.Label();
+        var end = new ClassFileWriter.Label();
+        switch (operator.type) {
+            case GREATER -> {
+                code.op(DCMPL, -3);
+                code.jump(IFLE, isFalse);
+            }
+            case GREATER_EQUAL -> {
+                code.op(DCMPL, -3);
+                code.jump(IFLT, isFalse);
+            }
+            case LESS -> {
+                code.op(DCMPG, -3);
+                code.jump(IFGE, isFalse);
+            }
+            default -> {
+                code.op(DCMPG, -3);
+                code.jump(IFGT, isFalse);
+            }
+        }
+        var stack = code.stack();
+        code.pushInt(1);
+        code.jump(GOTO, end);
+        code.place(isFalse);
+        code.setStack(stack);
+        code.pushInt(0);
+        code.place(end);
+    }
+
+    private void not() {
+        code.pushInt(1);
+        code.op(IXOR, -1);
+    }
+
+    /**
+     * Loads one of the objects handed to the compiled class, cast to the given type.
+     */
+    private void constant(Object value, String type) {
+        var index = constants.indexOf(value);
+        if (index == -1) {
+            index = constants.size();
+            constants.add(value);
+        }
+        code.local(ALOAD, THIS_LOCAL);
+        code.field(GETFIELD, className, "constants", "[Ljava/lang/Object;");
+        code.pushInt(index);
+        code.op(AALOAD, -1);
+        if (!type.equals(OBJECT)) {
+            code.type(CHECKCAST, type);
+        }
+    }
+
+    // Called from the generated code
+
+    static double numberOperands(Object operand, Token operator) {
+        if (operand instanceof Double number) {
+            return number;
+        }
+        throw new RuntimeError(operator, "Operands must be a numbers.");
+    }
+
+    static double numberOperand(Object operand, Token operator) {
+        if (operand instanceof Double number) {
+            return number;
+        }
+        throw new RuntimeError(operator, "Operand must be a number.");
+    }
+
+    static RuntimeError divisionByZero(Token operator) {
+        return new RuntimeError(operator, "Division by zero");
+    }
+}
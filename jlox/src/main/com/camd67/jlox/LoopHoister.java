@@ -0,0 +1,341 @@
+package com.camd67.jlox;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Moves expressions that work out the same on every iteration of a loop in front of it,
+ * so they're only evaluated once. Each one is stored in a new local, which the loop reads instead.
+ * An expression only gets the same value each time if it's built from literals, this, locals the loop never assigns,
+ * and fields when nothing in the loop could set one.
+ * Moving it must not change what happens when it fails, or when the loop never runs, so it also has to either:
+ * <ul>
+ *     <li>never fail, which relies on the types the TypeInferrer proved, so this runs after it</li>
+ *     <li>be the first thing the condition evaluates that could fail or do anything, since the condition
+ *     always runs at least once and the same expression fails the same way before the loop as in it</li>
+ * </ul>
+ * Globals are left alone, any call could change them, and they're already read straight from their cell.
+ */
+class LoopHoister extends AstRewriter {
+    /**
+     * Number of expressions moved out of loops so far.
+     */
+    private int hoisted = 0;
+
+    /**
+     * The function or top level block whose environment we're in, or null at the top level where there isn't one.
+     */
+    private Stmt frame = null;
+
+    /**
+     * Hoists loop invariant expressions out of every loop in the statements, returning how many were hoisted.
+     */
+    int hoist(List<Stmt> statements) {
+        rewrite(statements);
+        return hoisted;
+    }
+
+    /**
+     * The loop is hoisted out of before looking at any loops inside it,
+     * so something that doesn't change in either goes all the way out.
+     */
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        if (frame == null) {
+            // Top level variables are globals, there's nowhere to put a temporary
+            return super.visitWhileStmt(stmt);
+        }
+
+        var finder = new AssignmentFinder();
+        finder.visitWhileStmt(stmt);
+        var hoister = new Hoister(finder.assigned, !finder.changesFields);
+        stmt.condition = hoister.hoistLeading(stmt.condition);
+        hoister.visitWhileStmt(stmt);
+        super.visitWhileStmt(stmt);
+        if (hoister.temporaries.isEmpty()) {
+            return stmt;
+        }
+
+        hoisted += hoister.temporaries.size();
+        var statements = new ArrayList<Stmt>(hoister.temporaries);
+        statements.add(stmt);
+        return new Stmt.Block(statements);
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        var enclosing = frame;
+        frame = stmt;
+        super.visitFunctionStmt(stmt);
+        frame = enclosing;
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        if (!stmt.needsEnvironment) {
+            return super.visitBlockStmt(stmt);
+        }
+
+        var enclosing = frame;
+        frame = stmt;
+        super.visitBlockStmt(stmt);
+        frame = enclosing;
+        return stmt;
+    }
+
+    /**
+     * Adds a slot to the end of the current frame's environment.
+     */
+    private int reserveSlot() {
+        if (frame instanceof Stmt.Function function) {
+            return function.environmentSize++;
+        }
+        return ((Stmt.Block) frame).environmentSize++;
+    }
+
+    /**
+     * Collects every slot of the current frame a loop assigns or declares, and if it might set a field.
+     * Functions declared in the loop are skipped, they can only change our locals by capturing them.
+     */
+    private static class AssignmentFinder extends AstRewriter {
+        final Set<Integer> assigned = new HashSet<>();
+
+        /**
+         * If the loop sets a field or calls something that could.
+         */
+        boolean changesFields = false;
+
+        @Override
+        public Expr visitAssignExpr(Expr.Assign expr) {
+            assigned.add(expr.slot);
+            return super.visitAssignExpr(expr);
+        }
+
+        @Override
+        public Expr visitCallExpr(Expr.Call expr) {
+            changesFields = true;
+            // An inlined call writes its arguments to its own slots, see Inliner
+            for (var i = 0; i < expr.arguments.size() && expr.inlinedBody != null; i++) {
+                assigned.add(expr.inlinedSlot + i);
+            }
+            return super.visitCallExpr(expr);
+        }
+
+        @Override
+        public Expr visitSetExpr(Expr.Set expr) {
+            changesFields = true;
+            return super.visitSetExpr(expr);
+        }
+
+        @Override
+        public Stmt visitFunctionStmt(Stmt.Function stmt) {
+            assigned.add(stmt.slot);
+            return stmt;
+        }
+
+        @Override
+        public Stmt visitClassStmt(Stmt.Class stmt) {
+            assigned.add(stmt.slot);
+            return stmt;
+        }
+
+        @Override
+        public Stmt visitVarStmt(Stmt.Var stmt) {
+            assigned.add(stmt.slot);
+            return super.visitVarStmt(stmt);
+        }
+    }
+
+    /**
+     * Replaces the largest invariant expressions in a loop with reads of temporaries holding their value.
+     */
+    private class Hoister extends AstRewriter {
+        private final Set<Integer> assigned;
+        private final boolean fieldsFixed;
+
+        /**
+         * While hoisting from the front of the condition, if nothing evaluated so far could fail or do anything.
+         */
+        private boolean quiet = true;
+
+        /**
+         * Declarations of the temporaries, to run before the loop.
+         */
+        final List<Stmt> temporaries = new ArrayList<>();
+
+        Hoister(Set<Integer> assigned, boolean fieldsFixed) {
+            this.assigned = assigned;
+            this.fieldsFixed = fieldsFixed;
+        }
+
+        /**
+         * Hoists whatever the condition evaluates first, in order, until reaching something that
+         * could fail or do anything that isn't hoisted, or something that might not be evaluated at all.
+         */
+        Expr hoistLeading(Expr expr) {
+            if (!quiet) {
+                return expr;
+            } else if ((expr instanceof Expr.Binary || expr instanceof Expr.Unary || expr instanceof Expr.Get)
+                && isFixed(expr)) {
+                return temporary(expr);
+            }
+
+            if (expr instanceof Expr.Binary binary) {
+                binary.left = hoistLeading(binary.left);
+                binary.right = hoistLeading(binary.right);
+                quiet &= cannotFail(binary);
+            } else if (expr instanceof Expr.Unary unary) {
+                unary.right = hoistLeading(unary.right);
+                quiet &= cannotFail(unary);
+            } else if (expr instanceof Expr.Grouping grouping) {
+                grouping.expression = hoistLeading(grouping.expression);
+            } else if (expr instanceof Expr.Logical logical) {
+                // The right operand doesn't always run
+                logical.left = hoistLeading(logical.left);
+                quiet = false;
+            } else {
+                quiet &= cannotFail(expr);
+            }
+            return expr;
+        }
+
+        @Override
+        public Expr visitBinaryExpr(Expr.Binary expr) {
+            if (isFixed(expr) && cannotFail(expr)) {
+                return temporary(expr);
+            }
+            return super.visitBinaryExpr(expr);
+        }
+
+        @Override
+        public Expr visitUnaryExpr(Expr.Unary expr) {
+            if (isFixed(expr) && cannotFail(expr)) {
+                return temporary(expr);
+            }
+            return super.visitUnaryExpr(expr);
+        }
+
+        @Override
+        public Stmt visitFunctionStmt(Stmt.Function stmt) {
+            // A different frame, with its own slots
+            return stmt;
+        }
+
+        @Override
+        public Stmt visitClassStmt(Stmt.Class stmt) {
+            return stmt;
+        }
+
+        private Expr temporary(Expr expr) {
+            int line;
+            if (expr instanceof Expr.Binary binary) {
+                line = binary.operator.line;
+            } else if (expr instanceof Expr.Unary unary) {
+                line = unary.operator.line;
+            } else {
+                line = ((Expr.Get) expr).name.line;
+            }
+            // Not a valid identifier, so it can't clash with anything in the program
+            var name = new Token(TokenType.IDENTIFIER, "loop invariant " + (hoisted + temporaries.size()), null, line);
+            var slot = reserveSlot();
+
+            var declaration = new Stmt.Var(name, expr);
+            declaration.slot = slot;
+            temporaries.add(declaration);
+
+            var read = new Expr.Variable(name);
+            read.slot = slot;
+            read.inferredType = typeOf(expr);
+            return read;
+        }
+
+        /**
+         * If the expression evaluates to the same value (or fails the same way) every time in the loop,
+         * without doing anything else.
+         */
+        private boolean isFixed(Expr expr) {
+            if (expr instanceof Expr.Literal || expr instanceof Expr.This) {
+                return true;
+            } else if (expr instanceof Expr.Variable variable) {
+                return variable.slot != -1 && !variable.boxed && !assigned.contains(variable.slot);
+            } else if (expr instanceof Expr.Grouping grouping) {
+                return isFixed(grouping.expression);
+            } else if (expr instanceof Expr.Unary unary) {
+                return isFixed(unary.right);
+            } else if (expr instanceof Expr.Binary binary) {
+                return isFixed(binary.left) && isFixed(binary.right);
+            } else if (expr instanceof Expr.Get get) {
+                return fieldsFixed && isFixed(get.object);
+            }
+            return false;
+        }
+
+        /**
+         * If evaluating the expression can never fail, going by what the TypeInferrer proved.
+         */
+        private boolean cannotFail(Expr expr) {
+            if (expr instanceof Expr.Literal || expr instanceof Expr.This) {
+                return true;
+            } else if (expr instanceof Expr.Variable variable) {
+                // Only an initialized local has a known type
+                return variable.slot != -1 && variable.inferredType != InferredType.UNKNOWN;
+            } else if (expr instanceof Expr.Grouping grouping) {
+                return cannotFail(grouping.expression);
+            } else if (expr instanceof Expr.Unary unary) {
+                return cannotFail(unary.right)
+                    && (unary.operator.type == TokenType.BANG || typeOf(unary.right) == InferredType.NUMBER);
+            } else if (expr instanceof Expr.Binary binary) {
+                if (!cannotFail(binary.left) || !cannotFail(binary.right)) {
+                    return false;
+                }
+                var left = typeOf(binary.left);
+                var right = typeOf(binary.right);
+                var numbers = left == InferredType.NUMBER && right == InferredType.NUMBER;
+                return switch (binary.operator.type) {
+                    case EQUAL_EQUAL, BANG_EQUAL -> true;
+                    case GREATER, GREATER_EQUAL, LESS, LESS_EQUAL, MINUS, STAR -> numbers;
+                    case SLASH -> numbers
+                        && binary.right instanceof Expr.Literal literal
+                        && (double) literal.value != 0;
+                    case PLUS -> numbers || left == InferredType.STRING || right == InferredType.STRING;
+                    default -> false;
+                };
+            }
+            return false;
+        }
+
+        /**
+         * What the expression evaluates to, if it doesn't fail.
+         */
+        private InferredType typeOf(Expr expr) {
+            if (expr instanceof Expr.Literal literal) {
+                return InferredType.of(literal.value);
+            } else if (expr instanceof Expr.Variable variable) {
+                return variable.inferredType;
+            } else if (expr instanceof Expr.Grouping grouping) {
+                return typeOf(grouping.expression);
+            } else if (expr instanceof Expr.Unary unary) {
+                return unary.operator.type == TokenType.MINUS ? InferredType.NUMBER : InferredType.BOOLEAN;
+            } else if (expr instanceof Expr.Binary binary) {
+                var left = typeOf(binary.left);
+                var right = typeOf(binary.right);
+                return switch (binary.operator.type) {
+                    case MINUS, SLASH, STAR -> InferredType.NUMBER;
+                    case PLUS -> {
+                        if (left == InferredType.NUMBER && right == InferredType.NUMBER) {
+                            yield InferredType.NUMBER;
+                        } else if (left == InferredType.STRING || right == InferredType.STRING) {
+                            yield InferredType.STRING;
+                        }
+                        yield InferredType.UNKNOWN;
+                    }
+                    default -> InferredType.BOOLEAN;
+                };
+            }
+            return InferredType.UNKNOWN;
+        }
+    }
+}
@@ -7,6 +7,7 @@ import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.function.IntConsumer;
 
@@ -23,6 +24,31 @@ public class Lox implements LoxGlobal {
     private final PrintStream errOutput;
     private final IntConsumer exit;
     private final Interpreter interpreter;
+    private final VM vm;
+
+    /**
+     * If set, programs are compiled to bytecode and run on the VM instead of the tree walking interpreter.
+     */
+    private boolean useVm = false;
+
+    /**
+     * If set, what the optimization passes did is reported after parsing.
+     */
+    private boolean printStats = false;
+
+    /**
+     * If set, calls to pure global functions are cached by their arguments, see PurityAnalyzer.
+     * Only the tree walking interpreter uses the caches, and only for whole programs.
+     * A line in the REPL can't be proven pure, a later line could redefine what it calls.
+     */
+    private boolean memoize = false;
+
+    /**
+     * If unset, programs run exactly as written, without the passes that rewrite them
+     * (constant folding, dead code elimination, inlining, type inference and loop hoisting).
+     * Useful for comparing against, or for finding which pass broke a program.
+     */
+    private boolean optimize = true;
 
     /**
      * Constructs a new lox
@@ -33,14 +59,37 @@ public class Lox implements LoxGlobal {
         this.errOutput = errOutput;
         this.exit = exit;
         interpreter = new Interpreter(this);
+        vm = new VM(this);
     }
 
     void runFromCli(String[] args) throws IOException {
-        if (args.length > 1) {
-            output.println("Usage: jlox [script]");
+        var arguments = new ArrayList<>(List.of(args));
+        useVm = arguments.remove("--vm");
+        printStats = arguments.remove("--stats");
+        memoize = arguments.remove("--memoize");
+        optimize = !arguments.remove("--no-opt");
+        interpreter.specialize = arguments.remove("--specialize");
+        interpreter.compileFunctions = arguments.remove("--jvm");
+
+        var maxDepth = arguments.indexOf("--max-depth");
+        if (maxDepth != -1) {
+            arguments.remove(maxDepth);
+            try {
+                vm.maxFrames = Integer.parseInt(arguments.remove(maxDepth));
+            } catch (IndexOutOfBoundsException | NumberFormatException e) {
+                vm.maxFrames = 0;
+            }
+        }
+
+        // Only one engine can run the program, and only the VM has its own call stack to limit
+        var engines = (useVm ? 1 : 0) + (interpreter.specialize ? 1 : 0) + (interpreter.compileFunctions ? 1 : 0);
+        var badMaxDepth = maxDepth != -1 && (!useVm || vm.maxFrames < 1);
+
+        if (arguments.size() > 1 || engines > 1 || badMaxDepth) {
+            output.println("Usage: jlox [--vm [--max-depth calls] | --specialize | --jvm] [--memoize] [--no-opt] [--stats] [script]");
             exit.accept(64);
-        } else if (args.length == 1) {
-            runFile(args[0]);
+        } else if (arguments.size() == 1) {
+            runFile(arguments.get(0));
         } else {
             runPrompt();
         }
@@ -106,7 +155,11 @@ public class Lox implements LoxGlobal {
             return;
         }
 
-        new Resolver(interpreter, this).resolve(statements);
+        new Resolver(this).resolve(statements);
+
+        if (hadError) {
+            return;
+        }
 
         // In the repl we want to silently wrap expressions in a print statement for "calculator mode"
         for (var i = 0; i < statements.size(); i++) {
@@ -116,7 +169,7 @@ public class Lox implements LoxGlobal {
             }
         }
 
-        interpreter.interpret(statements);
+        execute(statements, false);
     }
 
     private void run(String source) {
@@ -126,13 +179,74 @@ public class Lox implements LoxGlobal {
             return;
         }
 
-        new Resolver(interpreter, this).resolve(statements);
+        new Resolver(this).resolve(statements);
 
         if (hadError) {
             return;
         }
 
-        interpreter.interpret(statements);
+        execute(statements, true);
+    }
+
+    /**
+     * Optimizes already resolved statements, unless --no-opt was given, then runs them on whichever engine was selected.
+     * Calls are only memoized if the statements are the whole program.
+     */
+    private void execute(List<Stmt> statements, boolean wholeProgram) {
+        if (optimize) {
+            new ConstantFolder().fold(statements);
+            var removed = new DeadCodeEliminator().eliminate(statements);
+            if (printStats) {
+                logErr("Removed " + removed + " unreachable statements and branches.");
+            }
+        }
+
+        List<Stmt.Function> memoized = List.of();
+        if (memoize && wholeProgram) {
+            memoized = new PurityAnalyzer().analyze(statements);
+            for (var function : memoized) {
+                function.memo = new MemoCache(MemoCache.DEFAULT_CAPACITY);
+            }
+        }
+        if (optimize) {
+            new Inliner().inline(statements);
+            new TypeInferrer().infer(statements);
+            var hoisted = new LoopHoister().hoist(statements);
+            if (printStats) {
+                logErr("Hoisted " + hoisted + " loop invariant expressions.");
+            }
+        }
+
+        if (useVm) {
+            var script = new BytecodeCompiler(this, vm.globals).compile(statements);
+            if (script != null) {
+                vm.interpret(script);
+            }
+        } else {
+            interpreter.interpret(statements);
+        }
+
+        if (printStats) {
+            var hits = 0;
+            var misses = 0;
+            var megamorphic = 0;
+            for (var cache : PropertyCache.findAll(statements)) {
+                hits += cache.hits;
+                misses += cache.misses;
+                if (cache.isMegamorphic()) {
+                    megamorphic++;
+                }
+            }
+            logErr("Property caches: " + hits + " hits, " + misses + " misses, " + megamorphic + " megamorphic sites.");
+            if (interpreter.compileFunctions) {
+                logErr("Compiled " + interpreter.compiledFunctions + " functions to JVM bytecode, "
+                    + interpreter.uncompiledFunctions + " left to the interpreter.");
+            }
+            for (var function : memoized) {
+                logErr("Memoized " + function.name.lexeme + ": "
+                    + function.memo.hits + " hits, " + function.memo.misses + " misses.");
+            }
+        }
     }
 
     @Override
@@ -1,9 +1,19 @@
 package com.camd67.jlox;
 
+import java.util.Arrays;
 import java.util.List;
 
 public interface LoxCallable {
     int arity();
 
     Object call(Interpreter interpreter, List<Object> arguments);
+
+    /**
+     * Calls with the arguments in an array, which is how the engines call everything
+     * so no list has to be made for each call.
+     * Callables that only take a list get the array wrapped as one, without copying it.
+     */
+    default Object call(Interpreter interpreter, Object[] arguments) {
+        return call(interpreter, Arrays.asList(arguments));
+    }
 }
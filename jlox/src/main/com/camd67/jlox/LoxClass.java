@@ -12,9 +12,36 @@ public class LoxClass implements LoxCallable {
     final String name;
     private final Map<String, LoxFunction> methods;
 
+    /**
+     * The shape every instance starts out with, before it has any fields.
+     * Only instances of this class share shapes made from it.
+     */
+    final Shape emptyShape = new Shape();
+
+    /**
+     * The shape an instance ends up with if init sets every field it assigns to, in the order they're written.
+     * Instances are allocated with room for all of them, and following the same order they walk through
+     * these shapes instead of making new ones. Fields init doesn't set still get added as they appear.
+     */
+    final Shape initializedShape;
+
+    private final LoxFunction initializer;
+    private final int arity;
+
     LoxClass(String name, Map<String, LoxFunction> methods) {
         this.name = name;
         this.methods = methods;
+        this.initializer = methods.get("init");
+        // No initializer? no arity.
+        this.arity = initializer == null ? 0 : initializer.arity();
+        var shape = emptyShape;
+        if (initializer != null) {
+            // Which fields these are was worked out once by the Resolver, only the shapes are per class
+            for (var field : initializer.declaration().initializedFields) {
+                shape = shape.withField(field);
+            }
+        }
+        this.initializedShape = shape;
     }
 
     @Override
@@ -24,24 +51,21 @@ public class LoxClass implements LoxCallable {
 
     @Override
     public int arity() {
-        var initializer = findMethod("init");
-
-        // No initializer? no arity.
-        if (initializer == null) {
-            return 0;
-        } else {
-            return initializer.arity();
-        }
+        return arity;
     }
 
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
+        return call(interpreter, arguments.toArray());
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, Object[] arguments) {
         var instance = new LoxInstance(this);
 
         // If we have an initializer, call it
-        var initializer = findMethod("init");
         if (initializer != null) {
-            initializer.bind(instance).call(interpreter, arguments);
+            initializer.invoke(interpreter, instance, arguments);
         }
 
         return instance;
@@ -4,7 +4,12 @@ import java.util.List;
 
 public class LoxFunction implements LoxCallable {
     private final Stmt.Function declaration;
-    private final Environment closure;
+
+    /**
+     * Only the variables this function actually uses from enclosing functions,
+     * not the whole environment it was declared in.
+     */
+    private final Environment.Box[] upvalues;
 
     /**
      * Track if this function is a class initializer.
@@ -12,10 +17,30 @@ public class LoxFunction implements LoxCallable {
      */
     private final boolean isInitializer;
 
-    public LoxFunction(Stmt.Function declaration, Environment closure, boolean isInitializer) {
+    /**
+     * The instance this method is bound to, passed in as "this".
+     * Null for functions and methods that haven't been bound yet, which can still be invoked on an instance.
+     */
+    private final LoxInstance receiver;
+
+    public LoxFunction(Stmt.Function declaration, Environment.Box[] upvalues, boolean isInitializer) {
+        this(declaration, upvalues, isInitializer, null);
+    }
+
+    private LoxFunction(
+        Stmt.Function declaration,
+        Environment.Box[] upvalues,
+        boolean isInitializer,
+        LoxInstance receiver
+    ) {
         this.declaration = declaration;
-        this.closure = closure;
+        this.upvalues = upvalues;
         this.isInitializer = isInitializer;
+        this.receiver = receiver;
+    }
+
+    Stmt.Function declaration() {
+        return declaration;
     }
 
     @Override
@@ -25,28 +50,98 @@ public class LoxFunction implements LoxCallable {
 
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
-        var environment = new Environment(closure);
-        for (var i = 0; i < declaration.params.size(); i++) {
-            environment.define(declaration.params.get(i).lexeme, arguments.get(i));
+        return call(interpreter, arguments.toArray());
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, Object[] arguments) {
+        var memo = declaration.memo;
+        if (memo == null) {
+            return callUncached(interpreter, receiver, arguments);
         }
 
-        try {
-            interpreter.executeBlock(declaration.body, environment);
-        } catch (Return returnStmt) {
-            if (isInitializer) {
-                return closure.getAt(0, "this");
+        var result = memo.lookup(arguments);
+        if (result == MemoCache.MISSING) {
+            result = callUncached(interpreter, receiver, arguments);
+            memo.store(arguments, result);
+        }
+        return result;
+    }
+
+    /**
+     * Calls this method on an instance, the same as calling it bound to the instance,
+     * but without making the bound method.
+     */
+    Object invoke(Interpreter interpreter, LoxInstance instance, Object[] arguments) {
+        return callUncached(interpreter, instance, arguments);
+    }
+
+    private Object callUncached(Interpreter interpreter, LoxInstance receiver, Object[] arguments) {
+        // Functions returning a call in tail position leave it to us (see Interpreter.tailCall),
+        // so a chain of tail calls runs in this loop instead of growing the stack.
+        var function = this;
+        Environment environment = null;
+        while (true) {
+            if (environment == null && function.declaration.compiled == null) {
+                environment = new Environment(function.declaration.environmentSize, function.upvalues);
+            }
+            var value = function.execute(interpreter, receiver, arguments, environment);
+
+            var next = interpreter.tailCallee;
+            if (next == null) {
+                return value;
             }
-            return returnStmt.value;
+            arguments = interpreter.tailArguments;
+            // Methods invoked in tail position come with their receiver, see Interpreter.invoke
+            receiver = interpreter.tailReceiver != null ? interpreter.tailReceiver : next.receiver;
+            interpreter.tailCallee = null;
+            interpreter.tailArguments = null;
+            interpreter.tailReceiver = null;
+
+            // A closure calling itself can reuse its environment, every slot is defined again before it's read
+            if (next.declaration != function.declaration || next.upvalues != function.upvalues) {
+                environment = null;
+            }
+            function = next;
+        }
+    }
+
+    /**
+     * Runs the body of this function once. The environment is only used when it isn't compiled.
+     */
+    private Object execute(
+        Interpreter interpreter,
+        LoxInstance receiver,
+        Object[] arguments,
+        Environment environment
+    ) {
+        var compiled = declaration.compiled;
+        if (compiled != null) {
+            var value = compiled.call(interpreter, receiver, arguments);
+            return isInitializer ? receiver : value;
+        }
+
+        // Parameters always take the first slots, after "this" for methods
+        var firstParameter = 0;
+        if (receiver != null) {
+            environment.define(0, false, receiver);
+            firstParameter = 1;
+        }
+        for (var i = 0; i < declaration.params.size(); i++) {
+            environment.define(firstParameter + i, false, arguments[i]);
+        }
+        for (var slot : declaration.boxedParameters) {
+            environment.box(slot);
         }
 
+        var value = interpreter.executeFunction(declaration.body, environment);
         if (isInitializer) {
             // If we're an initializer we want to always return 'this'
             // to allow chaining after the constructor.
-            // That "field" is always at the parent env.
-            return closure.getAt(0, "this");
+            return receiver;
         }
 
-        return null;
+        return value;
     }
 
     @Override
@@ -58,8 +153,6 @@ public class LoxFunction implements LoxCallable {
      * Binds this function to a given lox instance
      */
     LoxFunction bind(LoxInstance loxInstance) {
-        var environment = new Environment(closure);
-        environment.define("this", loxInstance);
-        return new LoxFunction(declaration, environment, isInitializer);
+        return new LoxFunction(declaration, upvalues, isInitializer, loxInstance);
     }
 }
@@ -1,35 +1,33 @@
 package com.camd67.jlox;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 /**
  * A runtime instance of a lox class, created by calling the class
  * constructor.
+ * Properties are read and written through the PropertyCache of the expression doing it.
  */
 public class LoxInstance {
+    private static final Object[] NO_VALUES = new Object[0];
+
+    /**
+     * Which fields the instance has, and where each one's value is in values. See Shape.
+     */
+    Shape shape;
+
     /**
-     * The current state of the fields in the instance.
+     * The current state of the fields in the instance, indexed by their slot in the shape.
+     * Can be longer than the shape, so adding fields doesn't have to grow it every time.
+     * Starts out with room for every field the class's initializer sets, see LoxClass.initializedShape.
      */
-    private final Map<String, Object> fields = new HashMap<>();
-    private final LoxClass klass;
+    Object[] values;
+    final LoxClass klass;
 
     public LoxInstance(LoxClass klass) {
         this.klass = klass;
-    }
-
-    Object get(Token name) {
-        // Fields get resolved first before methods
-        if (fields.containsKey(name.lexeme)) {
-            return fields.get(name.lexeme);
-        }
-
-        var method = klass.findMethod(name.lexeme);
-        if (method != null) {
-            return method.bind(this);
-        }
-
-        throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
+        this.shape = klass.emptyShape;
+        var fields = klass.initializedShape.size();
+        this.values = fields == 0 ? NO_VALUES : new Object[fields];
     }
 
     @Override
@@ -37,7 +35,15 @@ public class LoxInstance {
         return "<instance " + klass.name + ">";
     }
 
-    public void set(Token name, Object value) {
-        fields.put(name.lexeme, value);
+    /**
+     * Moves the instance on to the next shape, which has one more field than its current one, and stores that field.
+     */
+    void addField(Shape next, Object value) {
+        var slot = shape.size();
+        if (slot == values.length) {
+            values = Arrays.copyOf(values, Math.max(4, values.length * 2));
+        }
+        values[slot] = value;
+        shape = next;
     }
 }
@@ -0,0 +1,33 @@
+package com.camd67.jlox;
+
+import java.util.List;
+
+/**
+ * Native functions available to every lox program, regardless of which engine runs it.
+ */
+final class LoxNatives {
+    static final LoxCallable CLOCK = new LoxCallable() {
+        @Override
+        public int arity() {
+            return 0;
+        }
+
+        @Override
+        public Object call(Interpreter interpreter, List<Object> arguments) {
+            return call(interpreter, arguments.toArray());
+        }
+
+        @Override
+        public Object call(Interpreter interpreter, Object[] arguments) {
+            return (double) System.currentTimeMillis() / 1000.0;
+        }
+
+        @Override
+        public String toString() {
+            return "<native fn>";
+        }
+    };
+
+    private LoxNatives() {
+    }
+}
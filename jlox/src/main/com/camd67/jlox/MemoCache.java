@@ -0,0 +1,49 @@
+package com.camd67.jlox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Results of a pure function, keyed by the arguments it was called with.
+ * Holds a bounded number of results, evicting whichever was used least recently.
+ */
+class MemoCache {
+    static final int DEFAULT_CAPACITY = 10_000;
+
+    /**
+     * Returned by lookup when there's no result for the arguments, since nil is a valid result.
+     */
+    static final Object MISSING = new Object();
+
+    private final Map<List<Object>, Object> results;
+
+    int hits = 0;
+    int misses = 0;
+
+    MemoCache(int capacity) {
+        // Access ordered, so the eldest entry is always the least recently used one
+        results = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<List<Object>, Object> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    Object lookup(Object[] arguments) {
+        var result = results.getOrDefault(Arrays.asList(arguments), MISSING);
+        if (result == MISSING) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return result;
+    }
+
+    void store(Object[] arguments, Object result) {
+        results.put(new ArrayList<>(Arrays.asList(arguments)), result);
+    }
+}
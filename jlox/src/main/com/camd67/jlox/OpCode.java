@@ -0,0 +1,110 @@
+package com.camd67.jlox;
+
+/**
+ * Instructions understood by the VM.
+ * Each instruction is stored in a chunk as a single byte (its ordinal),
+ * followed by any operands noted below.
+ */
+enum OpCode {
+    /**
+     * Operand: 1 byte constant index. Pushes the constant.
+     */
+    CONSTANT,
+    NIL,
+    TRUE,
+    FALSE,
+    /**
+     * Pushes the marker for a variable that was declared without an initializer.
+     */
+    UNINITIALIZED,
+    POP,
+
+    /**
+     * Operand: 1 byte stack slot, relative to the current frame.
+     */
+    GET_LOCAL,
+    SET_LOCAL,
+
+    /**
+     * Operand: 1 byte constant index holding the global's cell.
+     */
+    GET_GLOBAL,
+    DEFINE_GLOBAL,
+    SET_GLOBAL,
+
+    /**
+     * Operand: 1 byte upvalue index in the current closure.
+     */
+    GET_UPVALUE,
+    SET_UPVALUE,
+
+    /**
+     * Operand: 1 byte constant index holding the variable's name.
+     * Errors if the value on top of the stack was never initialized.
+     */
+    CHECK_INITIALIZED,
+
+    /**
+     * Operand: 1 byte constant index holding the property name.
+     */
+    GET_PROPERTY,
+    SET_PROPERTY,
+
+    EQUAL,
+    NOT_EQUAL,
+    GREATER,
+    GREATER_EQUAL,
+    LESS,
+    LESS_EQUAL,
+    ADD,
+    SUBTRACT,
+    MULTIPLY,
+    DIVIDE,
+    NOT,
+    NEGATE,
+    PRINT,
+
+    /**
+     * Operand: 2 byte forward offset.
+     */
+    JUMP,
+    JUMP_IF_FALSE,
+    /**
+     * Operand: 2 byte backward offset.
+     */
+    LOOP,
+
+    /**
+     * Operand: 1 byte argument count.
+     */
+    CALL,
+    /**
+     * Operand: 1 byte argument count.
+     * A call in tail position, calls to lox functions replace the current frame instead of pushing a new one.
+     * Always followed by a RETURN for the calls that can't.
+     */
+    TAIL_CALL,
+
+    /**
+     * Operand: 1 byte constant index holding the function, followed by
+     * a pair of bytes (isLocal, index) for each upvalue the function captures.
+     */
+    CLOSURE,
+    CLOSE_UPVALUE,
+    RETURN,
+
+    /**
+     * Operand: 1 byte constant index holding the class name.
+     */
+    CLASS,
+    /**
+     * Operand: 1 byte constant index holding the method name.
+     */
+    METHOD,
+    ;
+
+    /**
+     * Cached so decoding an instruction doesn't allocate a new array each time.
+     */
+    static final OpCode[] VALUES = values();
+}
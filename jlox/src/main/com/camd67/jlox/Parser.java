@@ -118,7 +118,7 @@ public class Parser {
 
     /**
      * Grammar rule:
-     * statement -> expressionStmt | ifStmt | printStmt | returnStmt | whileStmt | break | block
+     * statement -> expressionStmt | ifStmt | printStmt | returnStmt | whileStmt | break | continue | block
      */
     private Stmt statement() {
         if (match(PRINT)) {
@@ -135,6 +135,8 @@ public class Parser {
             return forStatement();
         } else if (match(BREAK)) {
             return breakStatement();
+        } else if (match(CONTINUE)) {
+            return continueStatement();
         } else {
             return expressionStatement();
         }
@@ -162,6 +164,16 @@ public class Parser {
         return new Stmt.Break(breakToken);
     }
 
+    /**
+     * Grammar rule:
+     * continueStmt -> "continue" ";"
+     */
+    private Stmt.Continue continueStatement() {
+        var continueToken = previous();
+        consume(SEMICOLON, "Expect ';' after 'continue'.");
+        return new Stmt.Continue(continueToken);
+    }
+
     /**
      * Note this is a sugared expression, thus this will break down into
      * other statements as opposed to a for statement.
@@ -202,23 +214,18 @@ public class Parser {
         //     increment
         //   }
         // }
-
-        // Do we have an increment?
-        // Stick it at the end of the body
-        if (increment != null) {
-            body = new Stmt.Block(List.of(body, new Stmt.Expression(increment)));
-        }
+        // The increment is kept separate from the body so a continue still runs it.
 
         // Missing condition? It's always while(true) then
         if (condition == null) {
             condition = new Expr.Literal(true);
         }
-        body = new Stmt.While(condition, body);
+        body = new Stmt.While(condition, body, increment);
 
         // Do we have an initializer? Place that in a block above the existing body.
         // This must be in it's own block so we don't corrupt any outer scopes.
         if (initializer != null) {
-            body = new Stmt.Block(List.of(initializer, body));
+            body = new Stmt.Block(new ArrayList<>(List.of(initializer, body)));
         }
 
         return body;
@@ -233,7 +240,7 @@ public class Parser {
         var condition = expression();
         consume(RIGHT_PAREN, "Expect ')' after while condition.");
         var body = statement();
-        return new Stmt.While(condition, body);
+        return new Stmt.While(condition, body, null);
     }
 
     /**
@@ -325,10 +332,10 @@ public class Parser {
 
     /**
      * Grammar rule:
-     * ternary -> equality ( "?" ternary ":" ternary )
+     * ternary -> logicOr ( "?" ternary ":" ternary )
      */
     private Expr ternary() {
-        var expr = equality();
+        var expr = or();
         if (match(QUESTION)) {
             var left = ternary();
             consume(COLON, "mismatched ternary colon");
@@ -338,6 +345,34 @@ public class Parser {
         return expr;
     }
 
+    /**
+     * Grammar rule:
+     * logicOr -> logicAnd ( "or" logicAnd )*
+     */
+    private Expr or() {
+        var expr = and();
+        while (match(OR)) {
+            var operator = previous();
+            var right = and();
+            expr = new Expr.Logical(expr, operator, right);
+        }
+        return expr;
+    }
+
+    /**
+     * Grammar rule:
+     * logicAnd -> equality ( "and" equality )*
+     */
+    private Expr and() {
+        var expr = equality();
+        while (match(AND)) {
+            var operator = previous();
+            var right = equality();
+            expr = new Expr.Logical(expr, operator, right);
+        }
+        return expr;
+    }
+
     /**
      * Grammar rule:
      * equality -> comparison (("!=" | "==") comparison)*
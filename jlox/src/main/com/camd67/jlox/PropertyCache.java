@@ -0,0 +1,165 @@
+package com.camd67.jlox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Remembers how a single property get or set resolved for the last few shapes of instance it saw,
+ * so seeing one of them again skips looking the property up by name.
+ * Shapes are never shared between classes, so a shape also pins down which method a get finds.
+ * A site that sees more shapes than it can hold stops remembering new ones and just looks them up.
+ */
+class PropertyCache {
+    /**
+     * Most shapes a single site remembers.
+     */
+    static final int MAX_ENTRIES = 4;
+
+    /**
+     * Shape of each entry. An entry is spread over these arrays at the same index, and there's one more
+     * entry than a site remembers, which holds whatever a site that's full looked up last.
+     */
+    private final Shape[] shapes = new Shape[MAX_ENTRIES + 1];
+
+    /**
+     * Slot of the field that was read or written, or -1 when a get found a method or a set added a field.
+     */
+    private final int[] slots = new int[MAX_ENTRIES + 1];
+
+    /**
+     * Method a get found for each shape, if it didn't find a field.
+     */
+    private final LoxFunction[] methods = new LoxFunction[MAX_ENTRIES + 1];
+
+    /**
+     * Shape a set moved the instance on to for each shape, if it added a field.
+     */
+    private final Shape[] nextShapes = new Shape[MAX_ENTRIES + 1];
+
+    private int size = 0;
+
+    int hits = 0;
+    int misses = 0;
+
+    /**
+     * If the site saw more shapes than it could remember.
+     */
+    boolean isMegamorphic() {
+        return size == MAX_ENTRIES && misses > MAX_ENTRIES;
+    }
+
+    /**
+     * Every property cache in the statements, including the ones in inlined calls, for reporting how they did.
+     */
+    static List<PropertyCache> findAll(List<Stmt> statements) {
+        var caches = new ArrayList<PropertyCache>();
+        new AstRewriter() {
+            @Override
+            public Expr visitGetExpr(Expr.Get expr) {
+                caches.add(expr.cache);
+                return super.visitGetExpr(expr);
+            }
+
+            @Override
+            public Expr visitSetExpr(Expr.Set expr) {
+                caches.add(expr.cache);
+                return super.visitSetExpr(expr);
+            }
+
+            @Override
+            public Expr visitCallExpr(Expr.Call expr) {
+                if (expr.inlinedBody != null) {
+                    rewrite(expr.inlinedBody);
+                }
+                return super.visitCallExpr(expr);
+            }
+        }.rewrite(statements);
+        return caches;
+    }
+
+    Object get(LoxInstance instance, Token name) {
+        var entry = lookup(instance, name);
+        return slots[entry] != -1 ? instance.values[slots[entry]] : methods[entry].bind(instance);
+    }
+
+    /**
+     * Resolves the property like a get, but hands back the entry it's in instead of the value.
+     * Lets a call skip binding the method, see Interpreter.invoke.
+     */
+    int lookup(LoxInstance instance, Token name) {
+        var shape = instance.shape;
+        var entry = find(shape);
+        if (entry != -1) {
+            return entry;
+        }
+
+        // Fields get resolved first before methods
+        var slot = shape.slot(name.lexeme);
+        if (slot != -1) {
+            return remember(shape, slot, null, null);
+        }
+
+        var method = instance.klass.findMethod(name.lexeme);
+        if (method != null) {
+            return remember(shape, -1, method, null);
+        }
+
+        throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
+    }
+
+    /**
+     * The method a lookup found, or null if it found a field.
+     */
+    LoxFunction method(int entry) {
+        return methods[entry];
+    }
+
+    /**
+     * The value of the field a lookup found, which must not have found a method.
+     */
+    Object field(LoxInstance instance, int entry) {
+        return instance.values[slots[entry]];
+    }
+
+    void set(LoxInstance instance, Token name, Object value) {
+        var shape = instance.shape;
+        var entry = find(shape);
+        if (entry == -1) {
+            var slot = shape.slot(name.lexeme);
+            if (slot != -1) {
+                entry = remember(shape, slot, null, null);
+            } else {
+                entry = remember(shape, -1, null, shape.withField(name.lexeme));
+            }
+        }
+
+        if (slots[entry] != -1) {
+            instance.values[slots[entry]] = value;
+        } else {
+            instance.addField(nextShapes[entry], value);
+        }
+    }
+
+    /**
+     * Index of the entry for the shape, or -1 if it isn't remembered.
+     */
+    private int find(Shape shape) {
+        for (var i = 0; i < size; i++) {
+            if (shapes[i] == shape) {
+                hits++;
+                return i;
+            }
+        }
+        misses++;
+        return -1;
+    }
+
+    private int remember(Shape shape, int slot, LoxFunction method, Shape nextShape) {
+        var entry = size < MAX_ENTRIES ? size++ : MAX_ENTRIES;
+        shapes[entry] = shape;
+        slots[entry] = slot;
+        methods[entry] = method;
+        nextShapes[entry] = nextShape;
+        return entry;
+    }
+}
@@ -0,0 +1,229 @@
+package com.camd67.jlox;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds the global functions whose result only depends on their arguments, so it's safe to cache.
+ * A pure function doesn't print, write globals or fields, read anything that can change
+ * (globals other than pure functions, fields), create functions or classes, or call anything but pure functions.
+ * Each visit returns if what was visited is pure.
+ */
+class PurityAnalyzer implements Expr.Visitor<Boolean>, Stmt.Visitor<Boolean> {
+    /**
+     * Global functions we haven't proven impure yet, by name.
+     * They're assumed pure while checking, so recursive functions can still be pure.
+     */
+    private final Map<String, Stmt.Function> candidates = new LinkedHashMap<>();
+
+    /**
+     * Globals assigned anywhere in the program. A function stored in one could be replaced at any time.
+     */
+    private final Set<String> assignedGlobals = new HashSet<>();
+
+    /**
+     * Returns the global functions declared in the statements that are pure.
+     */
+    List<Stmt.Function> analyze(List<Stmt> statements) {
+        var declared = new HashSet<String>();
+        var redeclared = new HashSet<String>();
+        for (var statement : statements) {
+            Token name = null;
+            if (statement instanceof Stmt.Function function) {
+                name = function.name;
+                candidates.put(name.lexeme, function);
+            } else if (statement instanceof Stmt.Var var) {
+                name = var.name;
+            } else if (statement instanceof Stmt.Class klass) {
+                name = klass.name;
+            }
+            if (name != null && !declared.add(name.lexeme)) {
+                redeclared.add(name.lexeme);
+            }
+        }
+
+        // Visiting everything once finds every assigned global
+        for (var statement : statements) {
+            statement.accept(this);
+        }
+        candidates.keySet().removeAll(redeclared);
+        candidates.keySet().removeAll(assignedGlobals);
+
+        // Dropping one function can make the functions calling it impure too, so keep going until nothing changes
+        var changed = true;
+        while (changed) {
+            changed = candidates.values().removeIf(function -> !isPure(function.body));
+        }
+        return new ArrayList<>(candidates.values());
+    }
+
+    private boolean isPure(List<Stmt> statements) {
+        // Everything is still visited, so no assignments are missed on the first pass
+        var pure = true;
+        for (var statement : statements) {
+            pure &= statement.accept(this);
+        }
+        return pure;
+    }
+
+    private boolean isPure(Expr expr) {
+        return expr.accept(this);
+    }
+
+    @Override
+    public Boolean visitAssignExpr(Expr.Assign expr) {
+        var pure = isPure(expr.value);
+        if (expr.slot == -1 && expr.upvalue == -1) {
+            assignedGlobals.add(expr.type.lexeme);
+            return false;
+        }
+        // Captured variables outlive the call
+        return pure && expr.upvalue == -1 && !expr.boxed;
+    }
+
+    @Override
+    public Boolean visitBinaryExpr(Expr.Binary expr) {
+        return isPure(expr.left) & isPure(expr.right);
+    }
+
+    @Override
+    public Boolean visitLogicalExpr(Expr.Logical expr) {
+        return isPure(expr.left) & isPure(expr.right);
+    }
+
+    @Override
+    public Boolean visitCallExpr(Expr.Call expr) {
+        var pure = isPure(expr.callee);
+        for (var argument : expr.arguments) {
+            pure &= isPure(argument);
+        }
+        // Reading a callee is only pure if it's a pure function, but natives and classes are still callable
+        return pure
+            && expr.callee instanceof Expr.Variable callee
+            && callee.slot == -1
+            && callee.upvalue == -1
+            && candidates.containsKey(callee.name.lexeme);
+    }
+
+    @Override
+    public Boolean visitGetExpr(Expr.Get expr) {
+        isPure(expr.object);
+        return false;
+    }
+
+    @Override
+    public Boolean visitSetExpr(Expr.Set expr) {
+        isPure(expr.object);
+        isPure(expr.value);
+        return false;
+    }
+
+    @Override
+    public Boolean visitThisExpr(Expr.This expr) {
+        return false;
+    }
+
+    @Override
+    public Boolean visitGroupingExpr(Expr.Grouping expr) {
+        return isPure(expr.expression);
+    }
+
+    @Override
+    public Boolean visitLiteralExpr(Expr.Literal expr) {
+        return true;
+    }
+
+    @Override
+    public Boolean visitUnaryExpr(Expr.Unary expr) {
+        return isPure(expr.right);
+    }
+
+    @Override
+    public Boolean visitTernaryExpr(Expr.Ternary expr) {
+        return isPure(expr.check) & isPure(expr.left) & isPure(expr.right);
+    }
+
+    @Override
+    public Boolean visitVariableExpr(Expr.Variable expr) {
+        if (expr.slot == -1 && expr.upvalue == -1) {
+            return candidates.containsKey(expr.name.lexeme);
+        }
+        return expr.upvalue == -1 && !expr.boxed;
+    }
+
+    @Override
+    public Boolean visitBreakStmt(Stmt.Break stmt) {
+        return true;
+    }
+
+    @Override
+    public Boolean visitContinueStmt(Stmt.Continue stmt) {
+        return true;
+    }
+
+    @Override
+    public Boolean visitWhileStmt(Stmt.While stmt) {
+        var pure = isPure(stmt.condition) & stmt.body.accept(this);
+        if (stmt.increment != null) {
+            pure &= isPure(stmt.increment);
+        }
+        return pure;
+    }
+
+    @Override
+    public Boolean visitIfStmt(Stmt.If stmt) {
+        var pure = isPure(stmt.condition) & stmt.thenBranch.accept(this);
+        if (stmt.elseBranch != null) {
+            pure &= stmt.elseBranch.accept(this);
+        }
+        return pure;
+    }
+
+    /**
+     * Declaring a function creates a new closure each time, which a cached result would share.
+     */
+    @Override
+    public Boolean visitFunctionStmt(Stmt.Function stmt) {
+        isPure(stmt.body);
+        return false;
+    }
+
+    @Override
+    public Boolean visitBlockStmt(Stmt.Block stmt) {
+        return isPure(stmt.statements);
+    }
+
+    @Override
+    public Boolean visitClassStmt(Stmt.Class stmt) {
+        for (var method : stmt.methods) {
+            isPure(method.body);
+        }
+        return false;
+    }
+
+    @Override
+    public Boolean visitExpressionStmt(Stmt.Expression stmt) {
+        return isPure(stmt.expression);
+    }
+
+    @Override
+    public Boolean visitPrintStmt(Stmt.Print stmt) {
+        isPure(stmt.expression);
+        return false;
+    }
+
+    @Override
+    public Boolean visitReturnStmt(Stmt.Return stmt) {
+        return stmt.value == null || isPure(stmt.value);
+    }
+
+    @Override
+    public Boolean visitVarStmt(Stmt.Var stmt) {
+        var pure = stmt.initializer == null || isPure(stmt.initializer);
+        return pure && !stmt.boxed;
+    }
+}
@@ -1,5 +1,6 @@
 package com.camd67.jlox;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -23,21 +24,105 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         CLASS,
     }
 
-    private final Interpreter interpreter;
+    /**
+     * Everything that gets its own Environment at runtime: function bodies and top level blocks.
+     * Every other block keeps its variables in the Environment of the frame it's in.
+     */
+    private static class Frame {
+        final Frame enclosing;
+
+        /**
+         * Number of slots needed by the frame, across every block inside it.
+         */
+        int size = 0;
+
+        /**
+         * Variables from enclosing frames this frame's function needs, in the order it captures them.
+         */
+        final List<Capture> captures = new ArrayList<>();
+
+        Frame(Frame enclosing) {
+            this.enclosing = enclosing;
+        }
+    }
+
+    /**
+     * A single local scope, either a block or the body of a function.
+     */
+    private static class Scope {
+        final Frame frame;
+        final Map<String, LocalVariable> variables = new HashMap<>();
+
+        Scope(Frame frame) {
+            this.frame = frame;
+        }
+    }
+
+    /**
+     * A variable declared in a local scope.
+     */
+    private static class LocalVariable {
+        final Frame frame;
+
+        /**
+         * Index of the variable in its frame's Environment. These are handed out in declaration order.
+         */
+        final int slot;
+
+        /**
+         * If we have finished defining the variable yet.
+         * If it isn't yet defined then we know about the variable but shouldn't use it yet.
+         */
+        boolean defined = false;
+
+        /**
+         * If a closure refers to this variable. Captured variables are stored in a box
+         * so the frame and every closure share the same storage.
+         */
+        boolean captured = false;
+
+        /**
+         * If the variable is assigned anywhere after its declaration.
+         */
+        boolean assigned = false;
+
+        /**
+         * If anything refers to the variable after its declaration.
+         */
+        boolean used = false;
+
+        LocalVariable(Frame frame, int slot) {
+            this.frame = frame;
+            this.slot = slot;
+        }
+    }
+
     private final LoxGlobal loxGlobal;
     /**
      * Our current stack of scopes.
-     * Each scope acts similarly to an Environment object.
-     * Inside each scope we store booleans representing if we have defined
-     * the variable yet. If it isn't yet defined then we know about the
-     * variable but shouldn't use it yet.
+     * Inside each scope we store the slot of each variable and if we have defined it yet.
+     */
+    private final Stack<Scope> scopes = new Stack<>();
+
+    /**
+     * We can't know if a variable is captured until everything that could refer to it is resolved.
+     * These write that onto the AST once the outermost local scope ends.
      */
-    private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+    private final List<Runnable> pendingBoxing = new ArrayList<>();
     private FunctionType currentFunction = FunctionType.NONE;
     private ClassType currentClass = ClassType.NONE;
 
-    public Resolver(Interpreter interpreter, LoxGlobal loxGlobal) {
-        this.interpreter = interpreter;
+    /**
+     * If we're inside the body of a loop in the current function, where break and continue are allowed.
+     */
+    private boolean inLoop = false;
+
+    /**
+     * Fields set on "this" so far, in order, while directly inside an initializer. Null anywhere else.
+     */
+    private List<String> initializedFields = null;
+
+    public Resolver(LoxGlobal loxGlobal) {
         this.loxGlobal = loxGlobal;
     }
 
@@ -76,6 +161,10 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     public Void visitSetExpr(Expr.Set expr) {
         resolve(expr.value);
         resolve(expr.object);
+        if (initializedFields != null && expr.object instanceof Expr.This
+            && !initializedFields.contains(expr.name.lexeme)) {
+            initializedFields.add(expr.name.lexeme);
+        }
         return null;
     }
 
@@ -107,6 +196,13 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         return null;
     }
 
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        resolve(expr.left);
+        resolve(expr.right);
+        return null;
+    }
+
     @Override
     public Void visitTernaryExpr(Expr.Ternary expr) {
         resolve(expr.check);
@@ -117,7 +213,9 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitVariableExpr(Expr.Variable expr) {
-        if (!scopes.isEmpty() && scopes.peek().get(expr.name.lexeme) == Boolean.FALSE) {
+        if (!scopes.isEmpty()
+            && scopes.peek().variables.containsKey(expr.name.lexeme)
+            && !scopes.peek().variables.get(expr.name.lexeme).defined) {
             loxGlobal.error(expr.name, "Can't read local variable in its own initializer.");
         }
 
@@ -127,14 +225,32 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitBreakStmt(Stmt.Break stmt) {
-        // Do nothing
+        if (!inLoop) {
+            loxGlobal.error(stmt.token, "Break occurred outside loop");
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitContinueStmt(Stmt.Continue stmt) {
+        if (!inLoop) {
+            loxGlobal.error(stmt.token, "Continue occurred outside loop");
+        }
         return null;
     }
 
     @Override
     public Void visitWhileStmt(Stmt.While stmt) {
         resolve(stmt.condition);
+
+        var enclosingLoop = inLoop;
+        inLoop = true;
         resolve(stmt.body);
+        inLoop = enclosingLoop;
+
+        if (stmt.increment != null) {
+            resolve(stmt.increment);
+        }
         return null;
     }
 
@@ -151,7 +267,14 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
-        declare(stmt.name);
+        var variable = declare(stmt.name);
+        if (variable != null) {
+            stmt.slot = variable.slot;
+            pendingBoxing.add(() -> {
+                stmt.boxed = variable.captured;
+                stmt.unused = !variable.used;
+            });
+        }
         define(stmt.name);
         resolveFunction(stmt, FunctionType.FUNCTION);
         return null;
@@ -159,9 +282,14 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
-        beginScope();
+        // Only top level blocks need an environment, anywhere else we're inside a function's frame
+        var needsEnvironment = scopes.isEmpty();
+        beginScope(needsEnvironment);
         resolve(stmt.statements);
-        endScope();
+        var frame = endScope();
+
+        stmt.needsEnvironment = needsEnvironment;
+        stmt.environmentSize = frame.size;
         return null;
     }
 
@@ -170,13 +298,13 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         var enclosingClass = currentClass;
         currentClass = ClassType.CLASS;
 
-        declare(stmt.name);
+        var variable = declare(stmt.name);
+        if (variable != null) {
+            stmt.slot = variable.slot;
+            pendingBoxing.add(() -> stmt.boxed = variable.captured);
+        }
         define(stmt.name);
 
-        // Classes have a secret scope which contains only "this"
-        beginScope();
-        scopes.peek().put("this", true);
-
         for (var method : stmt.methods) {
             var declaration = FunctionType.METHOD;
             if (method.name.lexeme.equals("init")) {
@@ -185,7 +313,6 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             resolveFunction(method, declaration);
         }
 
-        endScope();
         currentClass = enclosingClass;
         return null;
     }
@@ -213,6 +340,9 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
                 loxGlobal.error(stmt.keyword, "Can't return a value from an initializer.");
             }
             resolve(stmt.value);
+
+            // Nothing is left to do in this function once the call is made, so it can take our place
+            stmt.tailCall = stmt.value instanceof Expr.Call;
         }
         return null;
     }
@@ -223,7 +353,14 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         // We don't want to define our variable until after the initializer runs.
         // That way we can't (and won't) refer to this new variable during initialization.
         // This catches cases like `var a = a;`
-        declare(stmt.name);
+        var variable = declare(stmt.name);
+        if (variable != null) {
+            stmt.slot = variable.slot;
+            pendingBoxing.add(() -> {
+                stmt.boxed = variable.captured;
+                stmt.singleAssignment = !variable.captured && !variable.assigned;
+            });
+        }
         if (stmt.initializer != null) {
             resolve(stmt.initializer);
         }
@@ -234,41 +371,130 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     private void resolveFunction(Stmt.Function function, FunctionType functionType) {
         var enclosingFunction = currentFunction;
         currentFunction = functionType;
-
-        beginScope();
+        // Loops outside of the function can't be broken out of from inside it
+        var enclosingLoop = inLoop;
+        inLoop = false;
+        // Functions inside an initializer may never be called, and methods of classes in it have their own "this"
+        var enclosingFields = initializedFields;
+        initializedFields = functionType == FunctionType.INITIALIZER ? new ArrayList<>() : null;
+
+        // Parameters are always the first slots, in order, which is how LoxFunction passes them in.
+        // Methods get "this" in front of them.
+        beginScope(true);
+        var parameters = new ArrayList<LocalVariable>();
+        if (functionType == FunctionType.METHOD || functionType == FunctionType.INITIALIZER) {
+            var scope = scopes.peek();
+            var thisVariable = new LocalVariable(scope.frame, scope.frame.size++);
+            thisVariable.defined = true;
+            scope.variables.put("this", thisVariable);
+            parameters.add(thisVariable);
+        }
         for (var param : function.params) {
-            declare(param);
+            parameters.add(declare(param));
             define(param);
         }
         resolve(function.body);
-        endScope();
+        var frame = endScope();
+
+        function.environmentSize = frame.size;
+        function.captures = frame.captures;
+        pendingBoxing.add(() -> function.boxedParameters = parameters.stream()
+            .filter(parameter -> parameter.captured)
+            .map(parameter -> parameter.slot)
+            .toList());
+
+        if (initializedFields != null) {
+            function.initializedFields = initializedFields;
+        }
 
         currentFunction = enclosingFunction;
+        inLoop = enclosingLoop;
+        initializedFields = enclosingFields;
     }
 
+    /**
+     * Stores where the variable lives directly on the expression.
+     * Variables in the current frame are read by slot, ones from enclosing frames through the
+     * function's captured variables. Anything we can't find is assumed to be a global and left unresolved.
+     */
     private void resolveLocal(Expr expr, Token name) {
         for (var i = scopes.size() - 1; i >= 0; i--) {
-            if (scopes.get(i).containsKey(name.lexeme)) {
-                interpreter.resolve(expr, scopes.size() - 1 - i);
-                return;
+            var variable = scopes.get(i).variables.get(name.lexeme);
+            if (variable == null) {
+                continue;
+            }
+            variable.used = true;
+            if (expr instanceof Expr.Assign) {
+                variable.assigned = true;
+            }
+
+            var frame = scopes.peek().frame;
+            if (variable.frame == frame) {
+                pendingBoxing.add(() -> {
+                    if (expr instanceof Expr.Variable variableExpr) {
+                        variableExpr.slot = variable.slot;
+                        variableExpr.boxed = variable.captured;
+                    } else if (expr instanceof Expr.Assign assign) {
+                        assign.slot = variable.slot;
+                        assign.boxed = variable.captured;
+                    } else if (expr instanceof Expr.This thisExpr) {
+                        thisExpr.slot = variable.slot;
+                        thisExpr.boxed = variable.captured;
+                    }
+                });
+            } else {
+                variable.captured = true;
+                var upvalue = capture(frame, variable);
+                if (expr instanceof Expr.Variable variableExpr) {
+                    variableExpr.upvalue = upvalue;
+                } else if (expr instanceof Expr.Assign assign) {
+                    assign.upvalue = upvalue;
+                } else if (expr instanceof Expr.This thisExpr) {
+                    thisExpr.upvalue = upvalue;
+                }
             }
+            return;
+        }
+    }
+
+    /**
+     * Captures the variable into the given frame, and every frame between it and the variable's own.
+     * Returns the index of the variable in the frame's captures.
+     */
+    private int capture(Frame frame, LocalVariable variable) {
+        Capture capture;
+        if (frame.enclosing == variable.frame) {
+            capture = new Capture(true, variable.slot);
+        } else {
+            capture = new Capture(false, capture(frame.enclosing, variable));
         }
+
+        // Each variable only needs to be captured once per function
+        var existing = frame.captures.indexOf(capture);
+        if (existing != -1) {
+            return existing;
+        }
+        frame.captures.add(capture);
+        return frame.captures.size() - 1;
     }
 
     /**
-     * Declares an identifier as existing, but not yet usable
+     * Declares an identifier as existing, but not yet usable.
+     * Returns the new variable, or null if we're in the global scope.
      */
-    private void declare(Token name) {
+    private LocalVariable declare(Token name) {
         // If we have no scopes we're in the global scope
         if (scopes.isEmpty()) {
-            return;
+            return null;
         }
         var scope = scopes.peek();
-        if (scope.containsKey(name.lexeme)) {
+        if (scope.variables.containsKey(name.lexeme)) {
             loxGlobal.error(name, "Variable with this name is already in this scope.");
         }
 
-        scope.put(name.lexeme, false);
+        var variable = new LocalVariable(scope.frame, scope.frame.size++);
+        scope.variables.put(name.lexeme, variable);
+        return variable;
     }
 
     /**
@@ -280,15 +506,36 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             return;
         }
 
-        scopes.peek().put(name.lexeme, true);
+        scopes.peek().variables.get(name.lexeme).defined = true;
     }
 
-    private void beginScope() {
-        scopes.push(new HashMap<>());
+    /**
+     * Starts a new scope. If it's a new frame, it'll get its own Environment at runtime.
+     */
+    private void beginScope(boolean isNewFrame) {
+        Frame frame;
+        if (isNewFrame) {
+            frame = new Frame(scopes.isEmpty() ? null : scopes.peek().frame);
+        } else {
+            frame = scopes.peek().frame;
+        }
+        scopes.push(new Scope(frame));
     }
 
-    private void endScope() {
-        scopes.pop();
+    /**
+     * Ends the current scope, returning the frame it was part of.
+     */
+    private Frame endScope() {
+        var scope = scopes.pop();
+
+        // Nothing else can refer to our variables, so we know what's been captured
+        if (scopes.isEmpty()) {
+            for (var pending : pendingBoxing) {
+                pending.run();
+            }
+            pendingBoxing.clear();
+        }
+        return scope.frame;
     }
 
     void resolve(List<Stmt> statements) {
@@ -0,0 +1,58 @@
+package com.camd67.jlox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The layout of an instance's fields, mapping each field name to where its value is stored.
+ * Every class starts its instances with its own empty shape, and adding a field moves an instance
+ * on to the next shape. Instances of a class that got the same fields in the same order end up sharing
+ * one shape, so each instance only needs to hold an array of values.
+ */
+class Shape {
+    /**
+     * Index of each field in an instance's values.
+     */
+    private final Map<String, Integer> slots;
+
+    /**
+     * Shapes already made by adding a field to this one, by field name.
+     */
+    private final Map<String, Shape> transitions = new HashMap<>();
+
+    Shape() {
+        this(Map.of());
+    }
+
+    private Shape(Map<String, Integer> slots) {
+        this.slots = slots;
+    }
+
+    /**
+     * Where the field is stored, or -1 if instances of this shape don't have it.
+     */
+    int slot(String name) {
+        return slots.getOrDefault(name, -1);
+    }
+
+    /**
+     * Number of fields in this shape, which are stored in slots 0 up to this.
+     */
+    int size() {
+        return slots.size();
+    }
+
+    /**
+     * The shape with one more field, stored in the slot after the existing ones.
+     */
+    Shape withField(String name) {
+        var next = transitions.get(name);
+        if (next == null) {
+            var nextSlots = new HashMap<>(slots);
+            nextSlots.put(name, slots.size());
+            next = new Shape(nextSlots);
+            transitions.put(name, next);
+        }
+        return next;
+    }
+}
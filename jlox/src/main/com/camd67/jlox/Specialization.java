@@ -0,0 +1,19 @@
+package com.camd67.jlox;
+
+/**
+ * What kind of operands a node has seen so far, used by the interpreter when specializing.
+ * Nodes start uninitialized, pick a specialization after the first run, and fall back
+ * to GENERIC for good the first time their guard fails.
+ */
+enum Specialization {
+    UNINITIALIZED,
+    /**
+     * Both operands have always been numbers.
+     */
+    NUMBER,
+    /**
+     * The left operand has always been a string.
+     */
+    STRING,
+    GENERIC,
+}
@@ -8,6 +8,7 @@ import java.util.List;
 abstract class Stmt {
     interface Visitor<R> {
         R visitBreakStmt(Break stmt);
+        R visitContinueStmt(Continue stmt);
         R visitWhileStmt(While stmt);
         R visitIfStmt(If stmt);
         R visitFunctionStmt(Function stmt);
@@ -35,14 +36,30 @@ abstract class Stmt {
         }
     }
 
+    static class Continue extends Stmt {
+
+        final Token token;
+
+        Continue(Token token) {
+            this.token = token;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitContinueStmt(this);
+        }
+    }
+
     static class While extends Stmt {
 
-        final Expr condition;
-        final Stmt body;
+        Expr condition;
+        Stmt body;
+        Expr increment;
 
-        While(Expr condition, Stmt body) {
+        While(Expr condition, Stmt body, Expr increment) {
             this.condition = condition;
             this.body = body;
+            this.increment = increment;
         }
 
         @Override
@@ -53,9 +70,9 @@ abstract class Stmt {
 
     static class If extends Stmt {
 
-        final Expr condition;
-        final Stmt thenBranch;
-        final Stmt elseBranch;
+        Expr condition;
+        Stmt thenBranch;
+        Stmt elseBranch;
 
         If(Expr condition, Stmt thenBranch, Stmt elseBranch) {
             this.condition = condition;
@@ -75,6 +92,18 @@ abstract class Stmt {
         final List<Token> params;
         final List<Stmt> body;
 
+        // Filled in after parsing
+        int slot = -1;
+        boolean boxed = false;
+        int environmentSize = 0;
+        List<Capture> captures = List.of();
+        List<Integer> boxedParameters = List.of();
+        boolean compileAttempted = false;
+        CompiledFunction compiled = null;
+        boolean unused = false;
+        MemoCache memo = null;
+        List<String> initializedFields = List.of();
+
         Function(Token name, List<Token> params, List<Stmt> body) {
             this.name = name;
             this.params = params;
@@ -91,6 +120,10 @@ abstract class Stmt {
 
         final List<Stmt> statements;
 
+        // Filled in after parsing
+        boolean needsEnvironment = false;
+        int environmentSize = 0;
+
         Block(List<Stmt> statements) {
             this.statements = statements;
         }
@@ -106,6 +139,10 @@ abstract class Stmt {
         final Token name;
         final List<Stmt.Function> methods;
 
+        // Filled in after parsing
+        int slot = -1;
+        boolean boxed = false;
+
         Class(Token name, List<Stmt.Function> methods) {
             this.name = name;
             this.methods = methods;
@@ -119,7 +156,7 @@ abstract class Stmt {
 
     static class Expression extends Stmt {
 
-        final Expr expression;
+        Expr expression;
 
         Expression(Expr expression) {
             this.expression = expression;
@@ -133,7 +170,7 @@ abstract class Stmt {
 
     static class Print extends Stmt {
 
-        final Expr expression;
+        Expr expression;
 
         Print(Expr expression) {
             this.expression = expression;
@@ -148,7 +185,10 @@ abstract class Stmt {
     static class Return extends Stmt {
 
         final Token keyword;
-        final Expr value;
+        Expr value;
+
+        // Filled in after parsing
+        boolean tailCall = false;
 
         Return(Token keyword, Expr value) {
             this.keyword = keyword;
@@ -164,7 +204,12 @@ abstract class Stmt {
     static class Var extends Stmt {
 
         final Token name;
-        final Expr initializer;
+        Expr initializer;
+
+        // Filled in after parsing
+        int slot = -1;
+        boolean boxed = false;
+        boolean singleAssignment = false;
 
         Var(Token name, Expr initializer) {
             this.name = name;
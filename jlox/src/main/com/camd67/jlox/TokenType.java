@@ -51,6 +51,7 @@ enum TokenType {
     VAR,
     WHILE,
     BREAK,
+    CONTINUE,
 
     // magic
     EOF,
@@ -73,6 +74,7 @@ enum TokenType {
         Map.entry("true", TRUE),
         Map.entry("var", VAR),
         Map.entry("while", WHILE),
-        Map.entry("break", BREAK)
+        Map.entry("break", BREAK),
+        Map.entry("continue", CONTINUE)
     );
 }
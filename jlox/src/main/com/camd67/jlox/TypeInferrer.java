@@ -0,0 +1,340 @@
+package com.camd67.jlox;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Works out which locals always hold a number, string, boolean or nil at each point they're read,
+ * by following assignments through the program in the order they run.
+ * Reads, assignments, ternaries and logical operators are annotated with what was found (see InferredType),
+ * which lets the engines skip checking operand types for them.
+ * Only locals that live in their frame's environment are tracked, anything captured, global or read
+ * off an instance could be changed by code we can't see, so it stays UNKNOWN.
+ */
+class TypeInferrer implements Expr.Visitor<InferredType>, Stmt.Visitor<Void> {
+    /**
+     * Where a loop's breaks and continues go. Each holds the joined types of every path that gets there.
+     */
+    private static class Loop {
+        Map<Integer, InferredType> breakTypes = null;
+        Map<Integer, InferredType> continueTypes = null;
+    }
+
+    /**
+     * Type of each local in the current frame, by slot. Missing slots are UNKNOWN.
+     * Null when the code being visited can't be reached, like after a return.
+     */
+    private Map<Integer, InferredType> types = new HashMap<>();
+
+    private Loop loop = null;
+
+    void infer(List<Stmt> statements) {
+        for (var statement : statements) {
+            statement.accept(this);
+        }
+    }
+
+    @Override
+    public InferredType visitAssignExpr(Expr.Assign expr) {
+        var type = expr.value.accept(this);
+        if (expr.slot != -1 && !expr.boxed) {
+            set(expr.slot, type);
+        }
+        expr.inferredType = type;
+        return type;
+    }
+
+    @Override
+    public InferredType visitBinaryExpr(Expr.Binary expr) {
+        var left = expr.left.accept(this);
+        var right = expr.right.accept(this);
+        return switch (expr.operator.type) {
+            // These only ever produce a number, or fail
+            case MINUS, SLASH, STAR -> InferredType.NUMBER;
+            case PLUS -> {
+                if (left == InferredType.NUMBER && right == InferredType.NUMBER) {
+                    yield InferredType.NUMBER;
+                } else if (left == InferredType.STRING || right == InferredType.STRING) {
+                    yield InferredType.STRING;
+                }
+                yield InferredType.UNKNOWN;
+            }
+            default -> InferredType.BOOLEAN;
+        };
+    }
+
+    @Override
+    public InferredType visitLogicalExpr(Expr.Logical expr) {
+        var left = expr.left.accept(this);
+        // The right operand might not run at all
+        var afterLeft = copy(types);
+        var right = expr.right.accept(this);
+        types = join(afterLeft, types);
+
+        expr.inferredType = left.join(right);
+        return expr.inferredType;
+    }
+
+    @Override
+    public InferredType visitCallExpr(Expr.Call expr) {
+        expr.callee.accept(this);
+        var arguments = new InferredType[expr.arguments.size()];
+        for (var i = 0; i < arguments.length; i++) {
+            arguments[i] = expr.arguments.get(i).accept(this);
+        }
+
+        // An inlined body reads its arguments from its own slots in our frame, see Inliner
+        if (expr.inlinedBody != null) {
+            var beforeBody = copy(types);
+            for (var i = 0; i < arguments.length; i++) {
+                set(expr.inlinedSlot + i, arguments[i]);
+            }
+            expr.inlinedBody.accept(this);
+            types = join(beforeBody, types);
+        }
+        return InferredType.UNKNOWN;
+    }
+
+    @Override
+    public InferredType visitGetExpr(Expr.Get expr) {
+        expr.object.accept(this);
+        return InferredType.UNKNOWN;
+    }
+
+    @Override
+    public InferredType visitSetExpr(Expr.Set expr) {
+        expr.object.accept(this);
+        expr.value.accept(this);
+        return InferredType.UNKNOWN;
+    }
+
+    @Override
+    public InferredType visitThisExpr(Expr.This expr) {
+        return InferredType.UNKNOWN;
+    }
+
+    @Override
+    public InferredType visitGroupingExpr(Expr.Grouping expr) {
+        return expr.expression.accept(this);
+    }
+
+    @Override
+    public InferredType visitLiteralExpr(Expr.Literal expr) {
+        return InferredType.of(expr.value);
+    }
+
+    @Override
+    public InferredType visitUnaryExpr(Expr.Unary expr) {
+        expr.right.accept(this);
+        return expr.operator.type == TokenType.MINUS ? InferredType.NUMBER : InferredType.BOOLEAN;
+    }
+
+    @Override
+    public InferredType visitTernaryExpr(Expr.Ternary expr) {
+        expr.check.accept(this);
+        var afterCheck = copy(types);
+        var left = expr.left.accept(this);
+        var afterLeft = types;
+        types = afterCheck;
+        var right = expr.right.accept(this);
+        types = join(afterLeft, types);
+
+        expr.inferredType = left.join(right);
+        return expr.inferredType;
+    }
+
+    @Override
+    public InferredType visitVariableExpr(Expr.Variable expr) {
+        var type = InferredType.UNKNOWN;
+        if (expr.slot != -1 && !expr.boxed) {
+            type = get(expr.slot);
+        }
+        expr.inferredType = type;
+        return type;
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+        // Outside a loop it's a resolve error, and the program never runs
+        if (loop == null) {
+            return null;
+        }
+        loop.breakTypes = join(loop.breakTypes, types);
+        types = null;
+        return null;
+    }
+
+    @Override
+    public Void visitContinueStmt(Stmt.Continue stmt) {
+        if (loop == null) {
+            return null;
+        }
+        loop.continueTypes = join(loop.continueTypes, types);
+        types = null;
+        return null;
+    }
+
+    /**
+     * The body is visited until the types at the start of the loop stop changing,
+     * so the last visit annotates it with types that hold on every iteration.
+     */
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        var enclosingLoop = loop;
+        while (true) {
+            loop = new Loop();
+            var start = copy(types);
+            stmt.condition.accept(this);
+            var exit = copy(types);
+
+            stmt.body.accept(this);
+            types = join(types, loop.continueTypes);
+            if (stmt.increment != null) {
+                stmt.increment.accept(this);
+            }
+
+            var next = join(start, types);
+            if (Objects.equals(next, start)) {
+                types = join(exit, loop.breakTypes);
+                break;
+            }
+            types = next;
+        }
+        loop = enclosingLoop;
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        stmt.condition.accept(this);
+        var afterCondition = copy(types);
+        stmt.thenBranch.accept(this);
+        var afterThen = types;
+        types = afterCondition;
+        if (stmt.elseBranch != null) {
+            stmt.elseBranch.accept(this);
+        }
+        types = join(afterThen, types);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        if (stmt.slot != -1 && !stmt.boxed) {
+            set(stmt.slot, InferredType.UNKNOWN);
+        }
+        inferFunction(stmt);
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        if (!stmt.needsEnvironment) {
+            infer(stmt.statements);
+            return null;
+        }
+
+        var enclosing = types;
+        types = new HashMap<>();
+        infer(stmt.statements);
+        types = enclosing;
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        if (stmt.slot != -1 && !stmt.boxed) {
+            set(stmt.slot, InferredType.UNKNOWN);
+        }
+        for (var method : stmt.methods) {
+            inferFunction(method);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        stmt.expression.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        stmt.expression.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value != null) {
+            stmt.value.accept(this);
+        }
+        types = null;
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        // Without an initializer it holds the marker for an uninitialized variable, which isn't any lox type
+        var type = InferredType.UNKNOWN;
+        if (stmt.initializer != null) {
+            type = stmt.initializer.accept(this);
+        }
+        if (stmt.slot != -1 && !stmt.boxed) {
+            set(stmt.slot, type);
+        }
+        return null;
+    }
+
+    /**
+     * Functions start with nothing known, not even their parameters.
+     */
+    private void inferFunction(Stmt.Function function) {
+        var enclosing = types;
+        var enclosingLoop = loop;
+        types = new HashMap<>();
+        loop = null;
+        infer(function.body);
+        types = enclosing;
+        loop = enclosingLoop;
+    }
+
+    private InferredType get(int slot) {
+        if (types == null) {
+            return InferredType.UNKNOWN;
+        }
+        return types.getOrDefault(slot, InferredType.UNKNOWN);
+    }
+
+    private void set(int slot, InferredType type) {
+        if (types != null) {
+            types.put(slot, type);
+        }
+    }
+
+    private static Map<Integer, InferredType> copy(Map<Integer, InferredType> types) {
+        return types == null ? null : new HashMap<>(types);
+    }
+
+    /**
+     * The types after either of two paths, where a null path is one that never gets here.
+     */
+    private static Map<Integer, InferredType> join(Map<Integer, InferredType> left, Map<Integer, InferredType> right) {
+        if (left == null) {
+            return copy(right);
+        } else if (right == null) {
+            return copy(left);
+        }
+
+        var joined = new HashMap<Integer, InferredType>();
+        for (var entry : left.entrySet()) {
+            joined.put(entry.getKey(), entry.getValue().join(right.getOrDefault(entry.getKey(), InferredType.UNKNOWN)));
+        }
+        for (var slot : right.keySet()) {
+            joined.putIfAbsent(slot, InferredType.UNKNOWN);
+        }
+        return joined;
+    }
+}
@@ -0,0 +1,461 @@
+package com.camd67.jlox;
+
+import java.util.Arrays;
+
+/**
+ * Stack based virtual machine that executes bytecode produced by the BytecodeCompiler.
+ * This is an alternative to the tree walking Interpreter and should behave identically.
+ */
+public class VM {
+    /**
+     * Default maximum depth of lox calls before we report a stack overflow.
+     * Frames live on the heap, so this can be far deeper than the java stack allows.
+     */
+    static final int DEFAULT_MAX_FRAMES = 100_000;
+
+    /**
+     * A single ongoing function call.
+     */
+    private static class CallFrame {
+        VmClosure closure;
+        int ip;
+        /**
+         * Index of the first stack slot this frame can use.
+         */
+        int slots;
+    }
+
+    private final LoxGlobal lox;
+    final GlobalEnvironment globals = new GlobalEnvironment();
+
+    private Object[] stack = new Object[256];
+    private int stackTop = 0;
+
+    /**
+     * Grown as calls get deeper, up to maxFrames.
+     */
+    private CallFrame[] frames = new CallFrame[64];
+    private int frameCount = 0;
+
+    /**
+     * Maximum depth of lox calls before we report a stack overflow.
+     */
+    int maxFrames = DEFAULT_MAX_FRAMES;
+
+    /**
+     * Linked list of upvalues that still point into the stack, sorted by descending slot.
+     */
+    private VmUpvalue openUpvalues = null;
+
+    public VM(LoxGlobal lox) {
+        this.lox = lox;
+
+        globals.define("clock", LoxNatives.CLOCK);
+    }
+
+    void interpret(VmFunction script) {
+        var closure = new VmClosure(script);
+        push(closure);
+        try {
+            call(closure, 0, script.chunk.lines[0]);
+            run();
+        } catch (RuntimeError error) {
+            lox.runtimeError(error);
+        } finally {
+            resetStack();
+        }
+    }
+
+    private void run() {
+        var frame = frames[frameCount - 1];
+        var code = frame.closure.function.chunk.code;
+        var constants = frame.closure.function.chunk.constants;
+        var ip = frame.ip;
+
+        while (true) {
+            var op = OpCode.VALUES[code[ip++]];
+            switch (op) {
+                case CONSTANT -> push(constants.get(code[ip++] & 0xff));
+                case NIL -> push(null);
+                case TRUE -> push(true);
+                case FALSE -> push(false);
+                case UNINITIALIZED -> push(Environment.VARIABLE_NOT_INITIALIZED);
+                case POP -> stackTop--;
+                case GET_LOCAL -> push(stack[frame.slots + (code[ip++] & 0xff)]);
+                case SET_LOCAL -> stack[frame.slots + (code[ip++] & 0xff)] = peek(0);
+                case GET_GLOBAL -> {
+                    var global = (GlobalEnvironment.Cell) constants.get(code[ip++] & 0xff);
+                    if (!global.isDefined()) {
+                        throw error(frame, ip, "Undefined variable '" + global.name + "'.");
+                    }
+                    var value = global.value();
+                    if (value == Environment.VARIABLE_NOT_INITIALIZED) {
+                        throw error(frame, ip, "Variable not yet initialized '" + global.name + "'.");
+                    }
+                    push(value);
+                }
+                case DEFINE_GLOBAL -> ((GlobalEnvironment.Cell) constants.get(code[ip++] & 0xff)).define(pop());
+                case SET_GLOBAL -> {
+                    var global = (GlobalEnvironment.Cell) constants.get(code[ip++] & 0xff);
+                    if (!global.isDefined()) {
+                        throw error(frame, ip, "Undefined variable '" + global.name + "'.");
+                    }
+                    global.define(peek(0));
+                }
+                case GET_UPVALUE -> {
+                    var upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+                    push(upvalue.slot != -1 ? stack[upvalue.slot] : upvalue.closed);
+                }
+                case SET_UPVALUE -> {
+                    var upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+                    if (upvalue.slot != -1) {
+                        stack[upvalue.slot] = peek(0);
+                    } else {
+                        upvalue.closed = peek(0);
+                    }
+                }
+                case CHECK_INITIALIZED -> {
+                    var name = constants.get(code[ip++] & 0xff);
+                    if (peek(0) == Environment.VARIABLE_NOT_INITIALIZED) {
+                        throw error(frame, ip, "Variable not yet initialized '" + name + "'.");
+                    }
+                }
+                case GET_PROPERTY -> {
+                    if (!(peek(0) instanceof VmInstance instance)) {
+                        throw error(frame, ip, "Only instances have properties.");
+                    }
+                    var name = (String) constants.get(code[ip++] & 0xff);
+
+                    // Fields get resolved first before methods
+                    var value = instance.fields.get(name);
+                    if (value != null || instance.fields.containsKey(name)) {
+                        stack[stackTop - 1] = value;
+                    } else {
+                        var method = instance.klass.methods.get(name);
+                        if (method == null) {
+                            throw error(frame, ip, "Undefined property '" + name + "'.");
+                        }
+                        stack[stackTop - 1] = new VmBoundMethod(instance, method);
+                    }
+                }
+                case SET_PROPERTY -> {
+                    if (!(peek(1) instanceof VmInstance instance)) {
+                        throw error(frame, ip, "Only instances have fields.");
+                    }
+                    instance.fields.put((String) constants.get(code[ip++] & 0xff), pop());
+                    // Setting a field evaluates to nil, the same as the interpreter
+                    stack[stackTop - 1] = null;
+                }
+                case EQUAL -> {
+                    var right = pop();
+                    stack[stackTop - 1] = Interpreter.isEqual(stack[stackTop - 1], right);
+                }
+                case NOT_EQUAL -> {
+                    var right = pop();
+                    stack[stackTop - 1] = !Interpreter.isEqual(stack[stackTop - 1], right);
+                }
+                case GREATER -> {
+                    checkNumberOperands(frame, ip);
+                    var right = (double) pop();
+                    stack[stackTop - 1] = (double) stack[stackTop - 1] > right;
+                }
+                case GREATER_EQUAL -> {
+                    checkNumberOperands(frame, ip);
+                    var right = (double) pop();
+                    stack[stackTop - 1] = (double) stack[stackTop - 1] >= right;
+                }
+                case LESS -> {
+                    checkNumberOperands(frame, ip);
+                    var right = (double) pop();
+                    stack[stackTop - 1] = (double) stack[stackTop - 1] < right;
+                }
+                case LESS_EQUAL -> {
+                    checkNumberOperands(frame, ip);
+                    var right = (double) pop();
+                    stack[stackTop - 1] = (double) stack[stackTop - 1] <= right;
+                }
+                case ADD -> {
+                    var right = pop();
+                    var left = stack[stackTop - 1];
+                    // If both are doubles we do math
+                    // Otherwise if either of the two are strings we stringify the other and concat
+                    if (left instanceof Double l && right instanceof Double r) {
+                        stack[stackTop - 1] = l + r;
+                    } else if (left instanceof String) {
+                        stack[stackTop - 1] = left + Interpreter.stringify(right);
+                    } else if (right instanceof String) {
+                        stack[stackTop - 1] = Interpreter.stringify(left) + right;
+                    } else {
+                        throw error(
+                            frame,
+                            ip,
+                            "Operands must be either be two numbers or one of the two operands a string."
+                        );
+                    }
+                }
+                case SUBTRACT -> {
+                    checkNumberOperands(frame, ip);
+                    var right = (double) pop();
+                    stack[stackTop - 1] = (double) stack[stackTop - 1] - right;
+                }
+                case MULTIPLY -> {
+                    checkNumberOperands(frame, ip);
+                    var right = (double) pop();
+                    stack[stackTop - 1] = (double) stack[stackTop - 1] * right;
+                }
+                case DIVIDE -> {
+                    checkNumberOperands(frame, ip);
+                    var right = (double) pop();
+                    if (right == 0.0) {
+                        throw error(frame, ip, "Division by zero");
+                    }
+                    stack[stackTop - 1] = (double) stack[stackTop - 1] / right;
+                }
+                case NOT -> stack[stackTop - 1] = !Interpreter.isTruthy(stack[stackTop - 1]);
+                case NEGATE -> {
+                    if (!(stack[stackTop - 1] instanceof Double value)) {
+                        throw error(frame, ip, "Operand must be a number.");
+                    }
+                    stack[stackTop - 1] = -value;
+                }
+                case PRINT -> lox.logOut(Interpreter.stringify(pop()));
+                case JUMP -> {
+                    var offset = readShort(code, ip);
+                    ip += 2 + offset;
+                }
+                case JUMP_IF_FALSE -> {
+                    var offset = readShort(code, ip);
+                    ip += 2;
+                    if (!Interpreter.isTruthy(peek(0))) {
+                        ip += offset;
+                    }
+                }
+                case LOOP -> {
+                    var offset = readShort(code, ip);
+                    ip += 2 - offset;
+                }
+                case CALL -> {
+                    var argCount = code[ip++] & 0xff;
+                    frame.ip = ip;
+                    callValue(peek(argCount), argCount, frame.closure.function.chunk.lines[ip - 1]);
+
+                    // Calls to lox functions push a new frame, natives don't
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    ip = frame.ip;
+                }
+                case TAIL_CALL -> {
+                    var argCount = code[ip++] & 0xff;
+                    frame.ip = ip;
+                    var line = frame.closure.function.chunk.lines[ip - 1];
+                    var callee = peek(argCount);
+                    if (callee instanceof VmBoundMethod bound) {
+                        stack[stackTop - argCount - 1] = bound.receiver;
+                        callee = bound.method;
+                    }
+
+                    if (callee instanceof VmClosure closure) {
+                        // Drop our own slots and slide the callee and its arguments down into them,
+                        // then reuse our frame for the call
+                        closeUpvalues(frame.slots);
+                        var calleeSlot = stackTop - argCount - 1;
+                        System.arraycopy(stack, calleeSlot, stack, frame.slots, argCount + 1);
+                        Arrays.fill(stack, frame.slots + argCount + 1, stackTop, null);
+                        stackTop = frame.slots + argCount + 1;
+                        frameCount--;
+                        call(closure, argCount, line);
+                    } else {
+                        // The RETURN after us hands back the result
+                        callValue(callee, argCount, line);
+                    }
+
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    ip = frame.ip;
+                }
+                case CLOSURE -> {
+                    var function = (VmFunction) constants.get(code[ip++] & 0xff);
+                    var closure = new VmClosure(function);
+                    push(closure);
+                    for (var i = 0; i < closure.upvalues.length; i++) {
+                        var isLocal = code[ip++] == 1;
+                        var index = code[ip++] & 0xff;
+                        if (isLocal) {
+                            closure.upvalues[i] = captureUpvalue(frame.slots + index);
+                        } else {
+                            closure.upvalues[i] = frame.closure.upvalues[index];
+                        }
+                    }
+                }
+                case CLOSE_UPVALUE -> {
+                    closeUpvalues(stackTop - 1);
+                    stackTop--;
+                }
+                case RETURN -> {
+                    var result = pop();
+                    closeUpvalues(frame.slots);
+                    frameCount--;
+                    if (frameCount == 0) {
+                        // Popping the script closure
+                        stackTop--;
+                        return;
+                    }
+
+                    // Discard the callee and its arguments, then hand back the result
+                    Arrays.fill(stack, frame.slots, stackTop, null);
+                    stackTop = frame.slots;
+                    push(result);
+
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    ip = frame.ip;
+                }
+                case CLASS -> push(new VmClass((String) constants.get(code[ip++] & 0xff)));
+                case METHOD -> {
+                    var method = (VmClosure) pop();
+                    var klass = (VmClass) peek(0);
+                    klass.methods.put((String) constants.get(code[ip++] & 0xff), method);
+                }
+            }
+        }
+    }
+
+    private void callValue(Object callee, int argCount, int line) {
+        if (callee instanceof VmClosure closure) {
+            call(closure, argCount, line);
+        } else if (callee instanceof VmBoundMethod bound) {
+            // The receiver takes the place of the callee, so it ends up in slot zero as "this"
+            stack[stackTop - argCount - 1] = bound.receiver;
+            call(bound.method, argCount, line);
+        } else if (callee instanceof VmClass klass) {
+            var instance = new VmInstance(klass);
+            stack[stackTop - argCount - 1] = instance;
+
+            // If we have an initializer, call it
+            var initializer = klass.methods.get("init");
+            if (initializer != null) {
+                call(initializer, argCount, line);
+            } else if (argCount != 0) {
+                throw error(line, "Expected 0 arguments but got " + argCount + ".");
+            }
+        } else if (callee instanceof LoxCallable function) {
+            if (argCount != function.arity()) {
+                throw error(line, "Expected " + function.arity() + " arguments but got " + argCount + ".");
+            }
+
+            var args = Arrays.copyOfRange(stack, stackTop - argCount, stackTop);
+            var result = function.call(null, args);
+            Arrays.fill(stack, stackTop - argCount - 1, stackTop, null);
+            stackTop -= argCount + 1;
+            push(result);
+        } else {
+            throw error(line, "Can only call functions and classes.");
+        }
+    }
+
+    private void call(VmClosure closure, int argCount, int line) {
+        if (argCount != closure.function.arity) {
+            throw error(line, "Expected " + closure.function.arity + " arguments but got " + argCount + ".");
+        }
+
+        if (frameCount >= maxFrames) {
+            throw error(line, "Stack overflow.");
+        }
+        if (frameCount == frames.length) {
+            frames = Arrays.copyOf(frames, Math.min(frames.length * 2, maxFrames));
+        }
+
+        var frame = frames[frameCount];
+        if (frame == null) {
+            frame = new CallFrame();
+            frames[frameCount] = frame;
+        }
+        frameCount++;
+
+        frame.closure = closure;
+        frame.ip = 0;
+        frame.slots = stackTop - argCount - 1;
+    }
+
+    private VmUpvalue captureUpvalue(int slot) {
+        VmUpvalue previous = null;
+        var upvalue = openUpvalues;
+        while (upvalue != null && upvalue.slot > slot) {
+            previous = upvalue;
+            upvalue = upvalue.next;
+        }
+
+        // Multiple closures capturing the same variable must share the upvalue
+        if (upvalue != null && upvalue.slot == slot) {
+            return upvalue;
+        }
+
+        var created = new VmUpvalue(slot, upvalue);
+        if (previous == null) {
+            openUpvalues = created;
+        } else {
+            previous.next = created;
+        }
+        return created;
+    }
+
+    /**
+     * Moves every captured variable at or above the given slot off of the stack and into its upvalue.
+     */
+    private void closeUpvalues(int lastSlot) {
+        while (openUpvalues != null && openUpvalues.slot >= lastSlot) {
+            var upvalue = openUpvalues;
+            upvalue.closed = stack[upvalue.slot];
+            upvalue.slot = -1;
+            openUpvalues = upvalue.next;
+        }
+    }
+
+    private void push(Object value) {
+        if (stackTop == stack.length) {
+            stack = Arrays.copyOf(stack, stackTop * 2);
+        }
+        stack[stackTop++] = value;
+    }
+
+    private Object pop() {
+        var value = stack[--stackTop];
+        stack[stackTop] = null;
+        return value;
+    }
+
+    private Object peek(int distance) {
+        return stack[stackTop - 1 - distance];
+    }
+
+    private void resetStack() {
+        Arrays.fill(stack, null);
+        stackTop = 0;
+        frameCount = 0;
+        openUpvalues = null;
+    }
+
+    private static int readShort(byte[] code, int ip) {
+        return ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+    }
+
+    private void checkNumberOperands(CallFrame frame, int ip) {
+        if (!(peek(0) instanceof Double) || !(peek(1) instanceof Double)) {
+            throw error(frame, ip, "Operands must be a numbers.");
+        }
+    }
+
+    private RuntimeError error(CallFrame frame, int ip, String message) {
+        return error(frame.closure.function.chunk.lines[ip - 1], message);
+    }
+
+    /**
+     * The VM only tracks lines, so we make up a token to carry the line to the error reporter.
+     */
+    private RuntimeError error(int line, String message) {
+        return new RuntimeError(new Token(TokenType.EOF, "", null, line), message);
+    }
+}
@@ -0,0 +1,19 @@
+package com.camd67.jlox;
+
+/**
+ * A method that has been pulled off of an instance, remembering the instance it came from.
+ */
+class VmBoundMethod {
+    final Object receiver;
+    final VmClosure method;
+
+    VmBoundMethod(Object receiver, VmClosure method) {
+        this.receiver = receiver;
+        this.method = method;
+    }
+
+    @Override
+    public String toString() {
+        return method.toString();
+    }
+}
@@ -0,0 +1,21 @@
+package com.camd67.jlox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The runtime representation of a class in the VM.
+ */
+class VmClass {
+    final String name;
+    final Map<String, VmClosure> methods = new HashMap<>();
+
+    VmClass(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public String toString() {
+        return "<class " + name + ">";
+    }
+}
@@ -0,0 +1,20 @@
+package com.camd67.jlox;
+
+/**
+ * The runtime representation of a function in the VM.
+ * Wraps a compiled function along with the variables it captured.
+ */
+class VmClosure {
+    final VmFunction function;
+    final VmUpvalue[] upvalues;
+
+    VmClosure(VmFunction function) {
+        this.function = function;
+        this.upvalues = new VmUpvalue[function.upvalueCount];
+    }
+
+    @Override
+    public String toString() {
+        return function.toString();
+    }
+}
@@ -0,0 +1,24 @@
+package com.camd67.jlox;
+
+/**
+ * A function compiled to bytecode.
+ * This is only the static part of the function, see VmClosure for the runtime value.
+ */
+class VmFunction {
+    final String name;
+    final Chunk chunk = new Chunk();
+    int arity;
+    int upvalueCount;
+
+    VmFunction(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public String toString() {
+        if (name == null) {
+            return "<script>";
+        }
+        return "<fn " + name + ">";
+    }
+}
@@ -0,0 +1,21 @@
+package com.camd67.jlox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The runtime representation of an instance of a class in the VM.
+ */
+class VmInstance {
+    final VmClass klass;
+    final Map<String, Object> fields = new HashMap<>();
+
+    VmInstance(VmClass klass) {
+        this.klass = klass;
+    }
+
+    @Override
+    public String toString() {
+        return "<instance " + klass.name + ">";
+    }
+}
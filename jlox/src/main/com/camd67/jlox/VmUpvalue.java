@@ -0,0 +1,24 @@
+package com.camd67.jlox;
+
+/**
+ * A variable captured by a closure.
+ * While the variable is still on the VM stack the upvalue is "open" and points at its slot.
+ * Once the variable goes out of scope the value is copied in here and the upvalue is "closed".
+ */
+class VmUpvalue {
+    /**
+     * Stack slot of the captured variable, or -1 once closed.
+     */
+    int slot;
+    Object closed;
+
+    /**
+     * Next open upvalue, ordered by descending stack slot.
+     */
+    VmUpvalue next;
+
+    VmUpvalue(int slot, VmUpvalue next) {
+        this.slot = slot;
+        this.next = next;
+    }
+}
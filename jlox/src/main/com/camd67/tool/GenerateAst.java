@@ -16,30 +16,41 @@ public class GenerateAst {
 
         defineAst(outputDir, "Expr", List.of(
             // This really aught to be more strongly typed
-            "Assign : Token type, Expr value",
-            "Binary: Expr left, Token operator, Expr right",
-            "Call : Expr callee, Token paren, List<Expr> arguments",
-            "Get : Expr object, Token name",
-            "Set : Expr object, Token name, Expr value",
-            "This : Token keyword",
+            // Anything after the | is resolved after parsing (so not in the constructor, and mutable)
+            "Assign : Token type, Expr value | int slot = -1, boolean boxed = false, int upvalue = -1, GlobalEnvironment.Cell global = null, "
+                + "InferredType inferredType = InferredType.UNKNOWN",
+            "Binary: Expr left, Token operator, Expr right"
+                + " | Specialization specialization = Specialization.UNINITIALIZED",
+            "Logical : Expr left, Token operator, Expr right | InferredType inferredType = InferredType.UNKNOWN",
+            "Call : Expr callee, Token paren, List<Expr> arguments"
+                + " | Stmt.Function inlined = null, Expr inlinedBody = null, int inlinedSlot = -1",
+            "Get : Expr object, Token name | PropertyCache cache = new PropertyCache()",
+            "Set : Expr object, Token name, Expr value | PropertyCache cache = new PropertyCache()",
+            "This : Token keyword | int slot = -1, boolean boxed = false, int upvalue = -1",
             "Grouping: Expr expression",
             "Literal: Object value",
             "Unary: Token operator, Expr right",
-            "Ternary: Expr check, Expr left, Expr right",
-            "Variable : Token name"
+            "Ternary: Expr check, Expr left, Expr right | InferredType inferredType = InferredType.UNKNOWN",
+            "Variable : Token name | int slot = -1, boolean boxed = false, int upvalue = -1, GlobalEnvironment.Cell global = null, "
+                + "InferredType inferredType = InferredType.UNKNOWN"
         ));
 
         defineAst(outputDir, "Stmt", List.of(
             "Break : Token token",
-            "While : Expr condition, Stmt body",
+            "Continue : Token token",
+            // The increment comes from desugaring for loops, it runs after the body even when it continues
+            "While : Expr condition, Stmt body, Expr increment",
             "If : Expr condition, Stmt thenBranch, Stmt elseBranch",
-            "Function : Token name, List<Token> params, List<Stmt> body",
-            "Block : List<Stmt> statements",
-            "Class : Token name, List<Stmt.Function> methods",
+            "Function : Token name, List<Token> params, List<Stmt> body | int slot = -1, boolean boxed = false, "
+                + "int environmentSize = 0, List<Capture> captures = List.of(), List<Integer> boxedParameters = List.of(), "
+                + "boolean compileAttempted = false, CompiledFunction compiled = null, boolean unused = false, "
+                + "MemoCache memo = null, List<String> initializedFields = List.of()",
+            "Block : List<Stmt> statements | boolean needsEnvironment = false, int environmentSize = 0",
+            "Class : Token name, List<Stmt.Function> methods | int slot = -1, boolean boxed = false",
             "Expression : Expr expression",
             "Print : Expr expression",
-            "Return : Token keyword, Expr value",
-            "Var : Token name, Expr initializer"
+            "Return : Token keyword, Expr value | boolean tailCall = false",
+            "Var : Token name, Expr initializer | int slot = -1, boolean boxed = false, boolean singleAssignment = false"
         ));
     }
 
@@ -101,17 +112,35 @@ public class GenerateAst {
         writer.println("    static class " + className + " extends " + baseName + " {");
         writer.println();
 
+        String[] resolvedFields = new String[0];
+        if (fieldList.contains("|")) {
+            resolvedFields = fieldList.split("\\|")[1].trim().split(", ");
+            fieldList = fieldList.split("\\|")[0].trim();
+        }
+
         String[] fields = new String[0];
         if (fieldList != "") {
             fields = fieldList.split(", ");
         }
 
         // Fields
+        // Child nodes aren't final so optimization passes can replace them in place
         for (var field : fields) {
-            writer.println("        final " + field + ";");
+            var type = field.split(" ")[0];
+            var modifier = type.equals("Expr") || type.equals("Stmt") ? "" : "final ";
+            writer.println("        " + modifier + field + ";");
         }
         writer.println();
 
+        // Resolved fields
+        if (resolvedFields.length > 0) {
+            writer.println("        // Filled in after parsing");
+            for (var field : resolvedFields) {
+                writer.println("        " + field + ";");
+            }
+            writer.println();
+        }
+
         // Constructor
         writer.println("        " + className + "(" + fieldList + ") {");
         for (var field : fields) {
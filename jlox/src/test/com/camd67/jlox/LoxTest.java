@@ -3,9 +3,12 @@ package com.camd67.jlox;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.CsvSource;
 import org.junit.jupiter.params.provider.MethodSource;
+import org.junit.jupiter.params.provider.ValueSource;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.function.IntConsumer;
 import java.util.stream.Stream;
 
@@ -23,6 +26,17 @@ public class LoxTest {
                     -1
                     """
             ),
+            Arguments.of(
+                "arithmetic",
+                """
+                    7
+                    -1
+                    3a
+                    a12
+                    true
+                    small
+                    """
+            ),
             Arguments.of(
                 "blocks",
                 """
@@ -98,6 +112,112 @@ public class LoxTest {
                     2
                     loop 3
                     breaking!
+                    loop 4
+                    0
+                    outer 0
+                    0
+                    """
+            ),
+            Arguments.of(
+                "continue",
+                """
+                    0
+                    4
+                    8
+                    k1
+                    k3
+                    k4
+                    """
+            ),
+            Arguments.of(
+                "logical",
+                """
+                    default
+                    first
+                    false
+                    2
+                    fallback
+                    no
+                    7
+                    3
+                    nil
+                    false
+                    """
+            ),
+            Arguments.of(
+                "deadCode",
+                """
+                    small
+                    big
+                    0
+                    2
+                    yes
+                    kept
+                    helped
+                    """
+            ),
+            Arguments.of(
+                "inlining",
+                """
+                    336
+                    arg 2
+                    16
+                    5
+                    arg 1
+                    arg 2
+                    2
+                    10
+                    28
+                    -1
+                    """
+            ),
+            Arguments.of(
+                "shapes",
+                """
+                    (1, 2)
+                    (3, 4)
+                    a5
+                    b6
+                    field
+                    (1, 2)
+                    30
+                    other x
+                    7
+                    """
+            ),
+            Arguments.of(
+                "methodCalls",
+                """
+                    13
+                    -4987
+                    -4887
+                    42
+                    7
+                    true
+                    3
+                    """
+            ),
+            Arguments.of(
+                "initializerLayout",
+                """
+                    p1 2
+                    p2 3 10
+                    true
+                    17
+                    only
+                    6
+                    10
+                    """
+            ),
+            Arguments.of(
+                "typeInference",
+                """
+                    90
+                    n=4
+                    1!!!
+                    2
+                    one1
+                    bumped!
                     """
             ),
             Arguments.of(
@@ -164,6 +284,14 @@ public class LoxTest {
                     Jane
                     """
             ),
+            Arguments.of(
+                "tailCalls",
+                """
+                    5.00005E9
+                    false
+                    50000
+                    """
+            ),
             Arguments.of(
                 "initializer",
                 """
@@ -197,6 +325,13 @@ public class LoxTest {
                     [line4] Error at 'this': Can't use 'this' outside of a class.
                     """
             ),
+            Arguments.of(
+                "breakOutsideLoop",
+                """
+                    [line1] Error at 'break': Break occurred outside loop
+                    [line3] Error at 'continue': Continue occurred outside loop
+                    """
+            ),
             Arguments.of(
                 "invalidInit",
                 """
@@ -217,6 +352,81 @@ public class LoxTest {
         }
     }
 
+    @ParameterizedTest(name = "Test file without optimizations - {0}.lox")
+    @MethodSource("fileSources")
+    void testFileSourcesWithoutOptimizations(String loxFilename, String expectedOutput) throws IOException {
+        try (var mockLox = new LoxTestUtil.TestLox()) {
+            mockLox.lox.runFromCli(new String[]{"--no-opt", "lox/" + loxFilename + ".lox"});
+
+            mockLox.assertNoErrOutput();
+            mockLox.assertOutputEquals(expectedOutput);
+        }
+    }
+
+    @ParameterizedTest(name = "Test file on the VM - {0}.lox")
+    @MethodSource("fileSources")
+    void testFileSourcesOnVm(String loxFilename, String expectedOutput) throws IOException {
+        try (var mockLox = new LoxTestUtil.TestLox()) {
+            mockLox.lox.runFromCli(new String[]{"--vm", "lox/" + loxFilename + ".lox"});
+
+            mockLox.assertNoErrOutput();
+            mockLox.assertOutputEquals(expectedOutput);
+        }
+    }
+
+    @ParameterizedTest(name = "Test file specialized - {0}.lox")
+    @MethodSource("fileSources")
+    void testFileSourcesSpecialized(String loxFilename, String expectedOutput) throws IOException {
+        try (var mockLox = new LoxTestUtil.TestLox()) {
+            mockLox.lox.runFromCli(new String[]{"--specialize", "lox/" + loxFilename + ".lox"});
+
+            mockLox.assertNoErrOutput();
+            mockLox.assertOutputEquals(expectedOutput);
+        }
+    }
+
+    @ParameterizedTest(name = "Test file compiled to JVM bytecode - {0}.lox")
+    @MethodSource("fileSources")
+    void testFileSourcesOnJvm(String loxFilename, String expectedOutput) throws IOException {
+        try (var mockLox = new LoxTestUtil.TestLox()) {
+            mockLox.lox.runFromCli(new String[]{"--jvm", "lox/" + loxFilename + ".lox"});
+
+            mockLox.assertNoErrOutput();
+            mockLox.assertOutputEquals(expectedOutput);
+        }
+    }
+
+    /**
+     * Without this, a JvmCompiler that gave up on every function would still pass the test above.
+     * The ones left to the interpreter declare or capture closures, which it doesn't compile.
+     */
+    @ParameterizedTest(name = "Functions compiled to JVM bytecode - {0}.lox")
+    @CsvSource({
+        "logical, 3, 0",
+        "deadCode, 2, 0",
+        "inlining, 8, 1",
+        "shapes, 3, 0",
+        "methodCalls, 4, 0",
+        "initializerLayout, 2, 1",
+        "typeInference, 4, 2",
+        "functions, 2, 0",
+        "fib, 1, 0",
+        "leakyClosure, 1, 0",
+        "class, 4, 0",
+        "methodsAndFunctions, 1, 0",
+        "janeAndBill, 1, 0",
+        "tailCalls, 5, 0",
+        "initializer, 2, 0",
+    })
+    void testFunctionsCompiledOnJvm(String loxFilename, int compiled, int uncompiled) throws IOException {
+        try (var mockLox = new LoxTestUtil.TestLox()) {
+            mockLox.lox.runFromCli(new String[]{"--jvm", "--stats", "lox/" + loxFilename + ".lox"});
+
+            var expected = "Compiled " + compiled + " functions to JVM bytecode, " + uncompiled + " left to the interpreter.\n";
+            assertTrue(mockLox.getErrOutput().endsWith(expected), mockLox.getErrOutput());
+        }
+    }
+
     @ParameterizedTest(name = "Test error file - {0}.lox")
     @MethodSource("errorFileSources")
     void testErrorFiles(String loxFilename, String expectedError) throws IOException {
@@ -251,6 +461,277 @@ public class LoxTest {
         }
     }
 
+    @Test
+    void useBeforeDefineOnVm() throws IOException {
+        IntConsumer expectedExit = (int i) -> assertEquals(70, i);
+        try (var mockLox = new LoxTestUtil.TestLox(expectedExit)) {
+            mockLox.lox.runFromCli(new String[]{"--vm", "lox/useBeforeDefine.lox"});
+
+            mockLox.assertErrEquals(
+                """
+                    Variable not yet initialized 'c'.
+                    [line 17]
+                    """
+            );
+            mockLox.assertOutputEquals(
+                """
+                    assigned
+                    nil
+                    inside
+                    """
+            );
+        }
+    }
+
+    @Test
+    void constantFolding() throws IOException {
+        IntConsumer expectedExit = (int i) -> assertEquals(70, i);
+        try (var mockLox = new LoxTestUtil.TestLox(expectedExit)) {
+            mockLox.lox.runFile("lox/constantFolding.lox");
+
+            // Dividing by zero can't be folded, so it still fails at runtime
+            mockLox.assertErrEquals(
+                """
+                    Division by zero
+                    [line 30]
+                    """
+            );
+            mockLox.assertOutputEquals(
+                """
+                    86400
+                    prefix-suffix
+                    -20
+                    true
+                    same
+                    n1
+                    2
+                    40
+                    42
+                    44
+                    w80
+                    2
+                    80
+                    9
+                    """
+            );
+        }
+    }
+
+    @Test
+    void deadCodeStats() throws IOException {
+        try (var mockLox = new LoxTestUtil.TestLox()) {
+            mockLox.lox.runFromCli(new String[]{"--stats", "lox/deadCode.lox"});
+
+            mockLox.assertErrEquals(
+                """
+                    Removed 6 unreachable statements and branches.
+                    Hoisted 0 loop invariant expressions.
+                    Property caches: 0 hits, 0 misses, 0 megamorphic sites.
+                    """
+            );
+        }
+    }
+
+    @Test
+    void loopHoisting() throws IOException {
+        IntConsumer expectedExit = (int i) -> assertEquals(70, i);
+        try (var mockLox = new LoxTestUtil.TestLox(expectedExit)) {
+            mockLox.lox.runFromCli(new String[]{"--stats", "lox/loopHoisting.lox"});
+
+            // Only the invariants that can't change what fails, or when, are moved
+            mockLox.assertErrEquals(
+                """
+                    Removed 0 unreachable statements and branches.
+                    Hoisted 4 loop invariant expressions.
+                    Division by zero
+                    [line 66]
+                    Property caches: 0 hits, 3 misses, 0 megamorphic sites.
+                    """
+            );
+            mockLox.assertOutputEquals(
+                """
+                    405
+                    10
+                    hit at 1
+                    6
+                    5
+                    0
+                    before
+                    """
+            );
+        }
+    }
+
+    @Test
+    void propertyCaches() throws IOException {
+        try (var mockLox = new LoxTestUtil.TestLox()) {
+            mockLox.lox.runFromCli(new String[]{"--stats", "lox/propertyCaches.lox"});
+
+            // Reading value sees five shapes, one more than a site remembers
+            mockLox.assertErrEquals(
+                """
+                    Removed 0 unreachable statements and branches.
+                    Hoisted 0 loop invariant expressions.
+                    Property caches: 33 hits, 20 misses, 1 megamorphic sites.
+                    """
+            );
+            mockLox.assertOutputEquals(
+                """
+                    10
+                    abcdea
+                    hello
+                    still hello
+                    """
+            );
+        }
+    }
+
+    @Test
+    void memoization() throws IOException {
+        try (var mockLox = new LoxTestUtil.TestLox()) {
+            // fib(60) is only fast enough to test because every result is cached
+            mockLox.lox.runFromCli(new String[]{"--memoize", "--stats", "lox/memoization.lox"});
+
+            mockLox.assertErrEquals(
+                """
+                    Removed 0 unreachable statements and branches.
+                    Hoisted 0 loop invariant expressions.
+                    Property caches: 0 hits, 0 misses, 0 megamorphic sites.
+                    Memoized fib: 58 hits, 61 misses.
+                    Memoized describe: 1 hits, 2 misses.
+                    Memoized loop: 0 hits, 1 misses.
+                    """
+            );
+            mockLox.assertOutputEquals(
+                """
+                    1.54800875592E12
+                    2
+                    2
+                    6
+                    9
+                    bigsmallbig
+                    5050
+                    """
+            );
+        }
+    }
+
+    @Test
+    void deepRecursionOnVm() throws IOException {
+        try (var mockLox = new LoxTestUtil.TestLox()) {
+            mockLox.lox.runFromCli(new String[]{"--vm", "lox/deepRecursion.lox"});
+
+            mockLox.assertNoErrOutput();
+            mockLox.assertOutputEquals(
+                """
+                    50000
+                    """
+            );
+        }
+    }
+
+    @Test
+    void maxDepthOnVm() throws IOException {
+        IntConsumer expectedExit = (int i) -> assertEquals(70, i);
+        try (var mockLox = new LoxTestUtil.TestLox(expectedExit)) {
+            mockLox.lox.runFromCli(new String[]{"--vm", "--max-depth", "1000", "lox/deepRecursion.lox"});
+
+            mockLox.assertErrEquals(
+                """
+                    Stack overflow.
+                    [line 4]
+                    """
+            );
+            mockLox.assertNoOutput();
+        }
+    }
+
+    @Test
+    void maxDepthBelowInitialFramesOnVm() throws IOException {
+        IntConsumer expectedExit = (int i) -> assertEquals(70, i);
+        try (var mockLox = new LoxTestUtil.TestLox(expectedExit)) {
+            // The script and four calls to fib fit, fib(5) needs one more
+            mockLox.lox.runFromCli(new String[]{"--vm", "--max-depth", "5", "lox/fib.lox"});
+
+            mockLox.assertErrEquals(
+                """
+                    Stack overflow.
+                    [line 3]
+                    """
+            );
+            mockLox.assertOutputEquals(
+                """
+                    0
+                    1
+                    1
+                    2
+                    3
+                    """
+            );
+        }
+    }
+
+    @ParameterizedTest(name = "Invalid options - {0}")
+    @ValueSource(strings = {"--max-depth 5", "--vm --max-depth 0", "--vm --max-depth", "--vm --jvm", "--specialize --jvm"})
+    void invalidOptions(String options) throws IOException {
+        IntConsumer expectedExit = (int i) -> assertEquals(64, i);
+        try (var mockLox = new LoxTestUtil.TestLox(expectedExit)) {
+            mockLox.lox.runFromCli((options + " lox/fib.lox").split(" "));
+
+            mockLox.assertNoErrOutput();
+            mockLox.assertOutputEquals(
+                """
+                    Usage: jlox [--vm [--max-depth calls] | --specialize | --jvm] [--memoize] [--no-opt] [--stats] [script]
+                    """
+            );
+        }
+    }
+
+    @Test
+    void replSkipsLinesThatFailToResolve() throws IOException {
+        try (var mockLox = new LoxTestUtil.TestLox("print this;\nprint 1;\n")) {
+            mockLox.lox.runFromCli(new String[]{});
+
+            mockLox.assertErrEquals(
+                """
+                    [line1] Error at 'this': Can't use 'this' outside of a class.
+                    """
+            );
+            assertTrue(mockLox.getOutput().endsWith("> > 1\n> "), mockLox.getOutput());
+        }
+    }
+
+    @Test
+    void replSkipsJumpsOutsideLoops() throws IOException {
+        try (var mockLox = new LoxTestUtil.TestLox("fun f() { break; }\nfun g() { continue; }\nprint 1;\n")) {
+            mockLox.lox.runFromCli(new String[]{});
+
+            mockLox.assertErrEquals(
+                """
+                    [line1] Error at 'break': Break occurred outside loop
+                    [line1] Error at 'continue': Continue occurred outside loop
+                    """
+            );
+            assertTrue(mockLox.getOutput().endsWith("> > > 1\n> "), mockLox.getOutput());
+        }
+    }
+
+    @Test
+    void replDoesNotMemoize() throws IOException {
+        var input = """
+            fun g(x) { return x; } fun f(x) { return g(x); }
+            print f(1);
+            fun g(x) { return x + 1; }
+            print f(1);
+            """;
+        try (var mockLox = new LoxTestUtil.TestLox(input)) {
+            mockLox.lox.runFromCli(new String[]{"--memoize"});
+
+            mockLox.assertNoErrOutput();
+            assertTrue(mockLox.getOutput().endsWith("> > 1\n> > 2\n> "), mockLox.getOutput());
+        }
+    }
+
     @Test
     void standardLibrary() throws IOException {
         try (var mockLox = new LoxTestUtil.TestLox()) {
@@ -268,5 +749,21 @@ public class LoxTest {
             assertTrue(afterTime >= timeOutput, "Expected " + timeOutput + " to be before " + afterTime);
         }
     }
-}
 
+    @Test
+    void listNativesTakeArrayArguments() {
+        // Natives written against a list of arguments still work when called with an array
+        var sum = new LoxCallable() {
+            @Override
+            public int arity() {
+                return 2;
+            }
+
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                return (double) arguments.get(0) + (double) arguments.get(1);
+            }
+        };
+        assertEquals(5.0, sum.call(null, new Object[]{2.0, 3.0}));
+    }
+}
@@ -79,6 +79,10 @@ public class LoxTestUtil {
             return loxOutStream.toString().replaceAll("\r\n", "\n");
         }
 
+        public String getErrOutput() {
+            return loxErrStream.toString().replaceAll("\r\n", "\n");
+        }
+
         public void assertNoOutput() {
             assertEquals("", loxOutStream.toString());
         }